@@ -5,6 +5,15 @@ import java.io.*;
 import java.lang.reflect.*;
 import java.net.*;
 import java.net.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
@@ -12,6 +21,22 @@ import java.security.SecureRandom;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
 import java.util.regex.Pattern;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.InflaterInputStream;
@@ -30,24 +55,27 @@ public final class CUrl {
 	private static final String DEFAULT_USER_AGENT = "Java-CURL version " + VERSION + " by Rocks Wang(https://github.com/rockswang)";
 	private static final Pattern ptnOptionName = Pattern.compile("-{1,2}[a-zA-Z][a-zA-Z0-9\\-.]*");
 	private static final CookieStore cookieStore = new CookieStore();
+	private static final SslContextCache sslContextCache = new SslContextCache(64);
+	private static final TrustStoreRegistry trustStoreRegistry = new TrustStoreRegistry();
 	private static HostnameVerifier insecureVerifier = null;
-	private static SSLSocketFactory insecureFactory = null;
+	private static volatile Executor defaultExecutor = null;
+	private static volatile Transport defaultTransport = new UrlConnectionTransport();
+	private static volatile RetryBudget retryBudget = null;
+	private static volatile CircuitBreakers circuitBreakers = null;
+	private static volatile DnsCache dnsCache = null;
+	private static final int BASIC_AUTH_CACHE_SIZE = 256;
+	private static final Map<String, String> basicAuthCache = new ConcurrentHashMap<String, String>();
 	private static boolean verbose = false;
-	private static String trustStoreFile = "system";  // default to system trustmanager
 
 	static {
 		try {
 			// Try to enable the setting to restricted headers like "Origin", this is expected to be executed before HttpURLConnection class-loading
 			System.setProperty("sun.net.http.allowRestrictedHeaders", "true");
 
-			// Modify the system-wide Cookie manager to ThreadLocal-based instance
-			CookieManager.setDefault(new CookieManager(cookieStore, CookiePolicy.ACCEPT_ALL));
-
 			// For insecure HTTPS
 			insecureVerifier = new HostnameVerifier() {
 				public boolean verify(String hostname, SSLSession session) { return true; }
 			};
-			insecureFactory = getSocketFactory(null, null, true);
 		} catch (Exception ignored) {}
 	}
 
@@ -83,9 +111,10 @@ public final class CUrl {
 			"--insecure", 31,				// Allow insecure server connections when using SSL
 			"-L", 13,
 			"--location", 13, 				// Follow redirects (H)
+			"--limit-rate", 40,				// SPEED  Limit transfer speed to SPEED bytes per second, suffix K/M/G allowed
 			"-m", 14,
 			"--max-time", 14, 				// SECONDS  Maximum time allowed for the transfer
-//			"--no-keepalive", 15, 			// Disable keepalive use on the connection
+			"--no-keepalive", 15, 			// Disable keepalive use on the connection
 			"-o", 16,
 			"--output", 16, 				// FILE   Write to FILE instead of stdout
 			"-x", 17,
@@ -94,9 +123,15 @@ public final class CUrl {
 			"--proxy-user", 18, 			// USER[:PASSWORD]  Proxy user and password
 			"-e", 19,
 			"--referer", 19, 				// Referer URL (H)
+			"--resolve", 44,				// HOST:PORT:ADDR[,ADDR]...  Resolve the host+port to the addresses
 			"--retry", 20, 					// NUM   Retry request NUM times if transient problems occur
 			"--retry-delay", 21, 			// SECONDS  Wait SECONDS between retries
 			"--retry-max-time", 22, 		// SECONDS  Retry only within this period
+			"--retry-all-errors", 38,		// Retry all errors (use with --retry)
+			"-Y", 41,
+			"--speed-limit", 41,			// SPEED  Stop transfers slower than SPEED bytes per second
+			"-y", 42,
+			"--speed-time", 42,				// SECONDS  Trigger 'speed-limit' abort after SECONDS (default: 30)
 			"-s", 23,
 			"--silent", 23, 				// Silent mode (don't output anything)
 			"--stderr", 24, 				// FILE   Where to redirect stderr (use "-" for stdout)
@@ -109,12 +144,19 @@ public final class CUrl {
 			"--request", 27,				// COMMAND  Specify request command to use
 			"--x-max-download", 29,			// BYTES Maximum bytes allowed for the download
 			"--x-tags", 30,					// DATA extra key-value pairs, storage only
+			"--x-stream", 35,				// Pipe response data to the output in chunks instead of buffering it in memory
+			"--x-hedge-after", 39,			// MS  Send a hedged request if no response in MS milliseconds (GET/HEAD/OPTIONS only)
+			"--http2", 36,					// Use HTTP 2 (requires java.net.http)
+			"--http1.1", 37,				// Use HTTP 1.1
 			"--verbose", 33,				// Verbose
 			"-v", 33,						// Verbose
+			"-w", 43,
+			"--write-out", 43,				// FORMAT  Use output FORMAT after completion
 			"", 0 // placeholder
 	);
 
 	private static final String BOUNDARY = "------------aia113jBkadk7289";
+	private static final IO STDOUT = new WrappedIO(new byte[0]); // placeholder of stdout in Plan
 	private static final byte[] NEWLINE = "\r\n".getBytes();
 
 	private final List<String> options = new ArrayList<String>();
@@ -123,9 +165,14 @@ public final class CUrl {
 	private final Map<String, String> headers = new LinkedHashMap<String, String>();
 	private final List<List<String[]>> responseHeaders = new ArrayList<List<String[]>>(4);
 	private final List<URL> locations = new ArrayList<URL>(4);
+	private final List<Timing> timings = new ArrayList<Timing>(4);
+	private RetryPolicy retryPolicy;
+	private CookieSession cookieSession;
 	private long startTime;
 	private long execTime;
 	private int httpCode;
+	private int hedges;
+	private long sizeDownload;
 	private byte[] rawStdout;
 
 	public CUrl() {}
@@ -187,15 +234,80 @@ public final class CUrl {
 	 * @param retryMaxTime The max retry time in second, 0 means infinite
 	 */
 	public final CUrl retry(int retry, float retryDelay, float retryMaxTime) {
+		return retry(retry, retryDelay, retryMaxTime, false);
+	}
+
+	/**
+	 * 设置重试参数，未指定retryDelay时以指数退避（含随机抖动）等待，参见{@link BackoffRetryPolicy}
+	 * Set retry options, exponential backoff with full jitter is used if retryDelay is 0, see {@link BackoffRetryPolicy}
+	 * @param retryAllErrors 是否重试所有错误，包括不可恢复的异常及所有HTTP错误码 / retry all errors, like curl's --retry-all-errors
+	 */
+	public final CUrl retry(int retry, float retryDelay, float retryMaxTime, boolean retryAllErrors) {
+		if (retryAllErrors) opt("--retry-all-errors");
 		return opt("--retry", Integer.toString(retry),
 				"--retry-delay", Float.toString(retryDelay),
 				"--retry-max-time", Float.toString(retryMaxTime));
 	}
 
+	/**
+	 * 设置自定义的重试策略，替代由--retry、--retry-delay及--retry-all-errors构建的默认策略
+	 * Use a custom retry policy instead of the default one built from --retry, --retry-delay and --retry-all-errors
+	 */
+	public final CUrl retryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+		return this;
+	}
+
+	/**
+	 * 将指定主机及端口解析为给定地址，同curl的--resolve，如"example.com:443:127.0.0.1"
+	 * Resolve the host and port to the given addresses, like curl's --resolve, e.g. "example.com:443:127.0.0.1"
+	 */
+	public final CUrl resolve(String hostPortAddresses) {
+		return opt("--resolve", hostPortAddresses);
+	}
+
+	/**
+	 * 执行完成后按格式向标准输出写出计时等信息，同curl的-w，参见{@link Timing#format(String)}
+	 * Write the timing etc. to stdout in the given format after completion, like curl's -w, see {@link Timing#format(String)}
+	 */
+	public final CUrl writeOut(String format) {
+		return opt("--write-out", format);
+	}
+
+	/**
+	 * 限制下载速度，同curl的--limit-rate
+	 * Limit the download speed, like curl's --limit-rate
+	 * @param bytesPerSecond 每秒最大字节数 / maximum bytes per second
+	 */
+	public final CUrl limitRate(long bytesPerSecond) {
+		return opt("--limit-rate", Long.toString(bytesPerSecond));
+	}
+
+	/**
+	 * 下载速度低于speedLimit的时间超过speedTime秒时中止，同curl的--speed-limit及--speed-time
+	 * Abort the transfer if it's slower than speedLimit bytes per second for speedTime seconds,
+	 * like curl's --speed-limit and --speed-time
+	 */
+	public final CUrl speedLimit(long speedLimit, int speedTime) {
+		return opt("--speed-limit", Long.toString(speedLimit), "--speed-time", Integer.toString(speedTime));
+	}
+
+	/**
+	 * 对冲请求：GET/HEAD/OPTIONS请求在指定毫秒数内未收到应答头时，发出第二个相同的请求，先到的应答胜出，另一个连接被取消
+	 * Hedged requests for GET/HEAD/OPTIONS: if no response headers are received within the given milliseconds,
+	 * a second identical request is sent, the first response wins and the other connection is cancelled.
+	 * The requests are sent in the default executor, see {@link #getDefaultExecutor()}.
+	 * @param hedgeAfterMillis 发出对冲请求前的等待毫秒数 / milliseconds to wait before sending the hedged request
+	 */
+	public final CUrl hedge(long hedgeAfterMillis) {
+		return opt("--x-hedge-after", Long.toString(hedgeAfterMillis));
+	}
+
 	/**
 	 * Specify timeout, default values are 0
 	 * @param connectTimeoutSeconds Connection timeout in second
-	 * @param readTimeoutSeconds Read timeout in second
+	 * @param readTimeoutSeconds 整个请求的最长时间（秒），包括连接、发送、读取、重定向及重试 /
+	 *   Maximum time in second allowed for the whole execution, including connecting, sending, reading, redirects and retries
 	 */
 	public final CUrl timeout(float connectTimeoutSeconds, float readTimeoutSeconds) {
 		return opt("--connect-timeout", Float.toString(connectTimeoutSeconds),
@@ -305,6 +417,16 @@ public final class CUrl {
 		return opt("-c", output);
 	}
 
+	/**
+	 * 使用给定的Cookie会话代替当前线程的Cookie存储，会话可在多个线程间共享。此时--cookie向会话中添加Cookie，而不清除原有Cookie
+	 * Use the given cookie session instead of the cookie store of current thread, the session can be shared among threads.
+	 * In this case --cookie adds cookies to the session, rather than replacing them.
+	 */
+	public final CUrl cookieSession(CookieSession session) {
+		this.cookieSession = session;
+		return this;
+	}
+
 	/**
 	 * 输出Cookie到给定的数据IO
 	 * Output Cookie to given IO object
@@ -402,6 +524,26 @@ public final class CUrl {
 		return opt("-o", key);
 	}
 
+	/**
+	 * 流式输出应答数据，解压后分块写入输出IO，而不在内存中缓存整个应答。仅当输出为标准输出时才调用Resolver。
+	 * Pipe the (decompressed) response data to the output IO in chunks, so the memory usage is bounded regardless of the response size.
+	 * The resolver is applied only if the output is stdout.
+	 */
+	public final CUrl stream() {
+		return opt("--x-stream");
+	}
+
+	/**
+	 * 使用基于java.net.http.HttpClient的HTTP/2传输层（需要JDK 11+），同一主机的并发请求在少量连接上多路复用。
+	 * 如不可用，或指定了--insecure或SOCKS代理，则使用默认传输层。
+	 * Use the HTTP/2 transport based on java.net.http.HttpClient (JDK 11+), concurrent requests to the same host
+	 * are multiplexed over a few connections. Falls back to the default transport if not available,
+	 * or if --insecure or a SOCKS proxy is specified, which are not supported by HttpClient.
+	 */
+	public final CUrl http2() {
+		return opt("--http2");
+	}
+
 	/**
 	 * 添加一个数据IO，可作为数据输入或数据输出，在--data等参数值中引用
 	 * @param key
@@ -413,6 +555,20 @@ public final class CUrl {
 		return this;
 	}
 
+	/**
+	 * Get the process-wide cache of SSLContexts used for HTTPS requests, e.g. to read hit/miss counters or to clear it
+	 */
+	public static SslContextCache getSslContextCache() {
+		return sslContextCache;
+	}
+
+	/**
+	 * Get the process-wide registry of truststores loaded by --cacert, e.g. to read the reload counter
+	 */
+	public static TrustStoreRegistry getTrustStoreRegistry() {
+		return trustStoreRegistry;
+	}
+
 	public static java.net.CookieStore getCookieStore() {
 		return cookieStore;
 	}
@@ -423,11 +579,23 @@ public final class CUrl {
 	 * @param output
 	 */
 	public static void saveCookies(IO output) {
-		if (output instanceof CookieIO) {
+		saveCookies(output, cookieStore);
+	}
+
+	private static void saveCookies(IO output, java.net.CookieStore store) {
+		if (output instanceof CookieJournal) {
+			try {
+				((CookieJournal) output).record(store.getCookies());
+			} catch (IOException e) {
+				if (verbose) {
+					Util.logStderr("Failed to save cookies to %s: %s", output, e);
+				}
+			}
+		} else if (output instanceof CookieIO) {
 			CookieIO cs = (CookieIO) output;
-			synchronized (cs) { for (HttpCookie c: cookieStore.getCookies()) cs.add(null, c); }
+			synchronized (cs) { for (HttpCookie c: store.getCookies()) cs.add(null, c); }
 		} else {
-			String s = dumpCookies(cookieStore.getCookies());
+			String s = dumpCookies(store.getCookies());
 			writeOutput(output, Util.s2b(s, null), false);
 		}
 	}
@@ -457,12 +625,18 @@ public final class CUrl {
 	 * @param input
 	 */
 	public static void loadCookies(IO input) {
-		if (input instanceof CookieIO) {
+		loadCookies(input, cookieStore);
+	}
+
+	private static void loadCookies(IO input, java.net.CookieStore store) {
+		if (input instanceof CookieJournal) {
+			for (HttpCookie c: ((CookieJournal) input).getCookies()) store.add(null, c);
+		} else if (input instanceof CookieIO) {
 			CookieIO cs = (CookieIO) input;
-			synchronized (cs) { for (HttpCookie c: cs.getCookies()) cookieStore.add(null, c); }
+			synchronized (cs) { for (HttpCookie c: cs.getCookies()) store.add(null, c); }
 		} else {
 			List<HttpCookie> cookies = parseCookies(Util.b2s(readInput(input), null, null));
-			for (HttpCookie c : cookies) cookieStore.add(null, c);
+			for (HttpCookie c : cookies) store.add(null, c);
 		}
 	}
 
@@ -470,20 +644,33 @@ public final class CUrl {
 		BufferedReader br = new BufferedReader(new StringReader(input));
 		ArrayList<HttpCookie> result = new ArrayList<HttpCookie>();
 		try {
-			for (String line = br.readLine(), l[]; line != null; line = br.readLine()) {
-				if (line.trim().length() == 0 || line.startsWith("# ") || (l = line.split("\t")).length < 7) continue;
-				HttpCookie cookie = new HttpCookie(l[5], l[6]);
-				cookie.setDomain(l[0]);
-				cookie.setPath(l[2]);
-				cookie.setSecure("TRUE".equals(l[3]));
-				long expire = Long.parseLong(l[4]);
-				cookie.setMaxAge(expire >= Integer.MAX_VALUE ? Integer.MAX_VALUE : expire * 1000L - System.currentTimeMillis());
-				if (!cookie.hasExpired()) cookieStore.add(null, cookie);
+			for (String line = br.readLine(); line != null; line = br.readLine()) {
+				HttpCookie cookie = parseCookieLine(line);
+				if (cookie != null && !cookie.hasExpired()) result.add(cookie);
 			}
 		} catch (Exception ignored) { } // should not happen
 		return result;
 	}
 
+	/** @return 一行Netscape格式的Cookie，如为空行、注释或格式有误则返回null / a cookie in Netscape format, null for blank, comment or malformed lines */
+	static HttpCookie parseCookieLine(String line) {
+		boolean httpOnly = line.startsWith("#HttpOnly_"); // written by curl
+		if (httpOnly) line = line.substring(10);
+		String[] l;
+		if (line.trim().length() == 0 || line.startsWith("#") || (l = line.split("\t")).length < 7) return null;
+		long expire;
+		try { expire = Long.parseLong(l[4]); } catch (NumberFormatException e) { return null; }
+		HttpCookie cookie = new HttpCookie(l[5], l[6]);
+		cookie.setDomain(l[0]);
+		cookie.setPath(l[2]);
+		cookie.setSecure("TRUE".equals(l[3]));
+		cookie.setHttpOnly(httpOnly);
+		// expiry in epoch seconds, 0 for a session cookie. A negative max-age also means a session cookie, so 0 for the past
+		long now = System.currentTimeMillis() / 1000L;
+		cookie.setMaxAge(expire == 0 ? -1 : expire >= Integer.MAX_VALUE ? Integer.MAX_VALUE : Math.max(0, expire - now));
+		return cookie;
+	}
+
 	/**
 	 * Get all options as CURL command-line
 	 */
@@ -535,6 +722,31 @@ public final class CUrl {
 		return responseHeaders;
 	}
 
+	/**
+	 * 获取最后一个应答的应答头，支持大小写无关的查找
+	 * Get headers of the last response, with case-insensitive lookup by name.
+	 * @return
+	 */
+	public final Headers getLastResponseHeaders() {
+		return responseHeaders.isEmpty() ? new Headers() : (Headers) responseHeaders.get(responseHeaders.size() - 1);
+	}
+
+	/**
+	 * 获取本次执行中每次请求尝试（含重定向及重试）的计时
+	 * Get the timing of every attempt in the last execution, including redirects and retries
+	 */
+	public final List<Timing> getTimings() {
+		return timings;
+	}
+
+	/**
+	 * 获取最后一次请求尝试的计时，未发出请求时为null
+	 * Get the timing of the last attempt, null if no request was made
+	 */
+	public final Timing getTiming() {
+		return timings.isEmpty() ? null : timings.get(timings.size() - 1);
+	}
+
 	/**
 	 * Get total time-consuming including retrying in millisecond.
 	 * @return
@@ -543,6 +755,31 @@ public final class CUrl {
 		return execTime;
 	}
 
+	/**
+	 * 获取最后一个应答下载的字节数（解压前）
+	 * Get the number of bytes downloaded (before decompression) of the last response
+	 */
+	public final long getSizeDownload() {
+		return sizeDownload;
+	}
+
+	/**
+	 * 获取平均下载速度（字节/秒），即最后一个应答下载的字节数除以总执行时间，同curl的speed_download
+	 * Get the average download speed in bytes per second, i.e. the bytes downloaded of the last response
+	 * divided by the total execution time, same as curl's speed_download
+	 */
+	public final long getSpeedDownload() {
+		return sizeDownload * 1000 / Math.max(execTime, 1);
+	}
+
+	/**
+	 * 获取本次执行中发出的对冲请求数，参见{@link #hedge(long)}
+	 * Get the number of hedged requests sent in the last execution, see {@link #hedge(long)}
+	 */
+	public final int getHedges() {
+		return hedges;
+	}
+
 	/**
 	 * Get HTTP status code of last response, i.e. 200, 302 etc.
 	 * @return
@@ -556,6 +793,11 @@ public final class CUrl {
 		return fallback;
 	}
 
+	public final <T> T getStdoutStream(StreamResolver<T> resolver, T fallback) {
+		try { return resolver.resolve(httpCode, new ByteArrayInputStream(rawStdout)); } catch (Throwable ignored) {}
+		return fallback;
+	}
+
 	/**
 	 * Get all destination URLs including redirection(s) in one request.
 	 * In case --location is not specified (default), it's always exactly one element.
@@ -592,246 +834,257 @@ public final class CUrl {
 	 * @return 将标准输出中的数据使用解析器转换为对象。如失败，则返回fallback
 	 */
 	public final <T> T exec(Resolver<T> resolver, T fallback) {
+		return execute(new Plan(options, iomap, retryPolicy, cookieSession), resolver, null, fallback);
+	}
+
+	/**
+	 * 解析参数并执行请求，应答数据以流的形式直接交给解析器，而不在内存中缓存
+	 * Parse options and execute the request, the decompressed response stream is handed over to the resolver directly.
+	 * @param resolver 流式解析器，仅当输出为标准输出时才调用
+	 * @param fallback 默认返回值
+	 * @return 解析器返回的对象。如失败，则返回fallback
+	 */
+	public final <T> T execStream(StreamResolver<T> resolver, T fallback) {
+		return execute(new Plan(options, iomap, retryPolicy, cookieSession), null, resolver, fallback);
+	}
+
+	/**
+	 * 解析参数，生成可重复执行的请求计划
+	 * Parse options into an immutable request plan, which can be executed repeatedly and shared among threads.
+	 * Note: data inputs such as "-d @file" are read at this time, options changed afterwards do not affect the plan.
+	 * @throws IllegalArgumentException 参数有误
+	 */
+	public final Plan compile() {
+		Plan plan = new Plan(options, iomap, retryPolicy, cookieSession);
+		if (plan.error instanceof IllegalArgumentException) throw (IllegalArgumentException) plan.error;
+		if (plan.error != null) throw new IllegalArgumentException(plan.error);
+		return plan;
+	}
+
+	/**
+	 * 执行预编译的请求计划，本实例的参数被忽略，执行结果（如getHttpCode等）保存在本实例中
+	 * Execute a pre-compiled plan, options of this instance are ignored, results (getHttpCode etc.) are stored in this instance.
+	 * @param plan 请求计划，参见{@link #compile()}
+	 * @param resolver 输出解析器
+	 * @param fallback 默认返回值
+	 */
+	public final <T> T exec(Plan plan, Resolver<T> resolver, T fallback) {
+		return execute(plan, resolver, null, fallback);
+	}
+
+	/**
+	 * 执行预编译的请求计划，应答数据以流的形式交给解析器，参见{@link #execStream(StreamResolver, Object)}
+	 * Execute a pre-compiled plan, the response stream is handed over to the resolver directly
+	 */
+	public final <T> T execStream(Plan plan, StreamResolver<T> resolver, T fallback) {
+		return execute(plan, null, resolver, fallback);
+	}
+
+	/**
+	 * 在默认Executor中异步执行请求，参见{@link #execAsync(Resolver, Object, Executor)}
+	 * Execute the request asynchronously with the default executor
+	 */
+	public final <T> CompletableFuture<T> execAsync(Resolver<T> resolver) {
+		return execAsync(resolver, null, getDefaultExecutor());
+	}
+
+	public final <T> CompletableFuture<T> execAsync(Resolver<T> resolver, T fallback) {
+		return execAsync(resolver, fallback, getDefaultExecutor());
+	}
+
+	/**
+	 * 在给定的Executor中异步执行请求。调用线程的Cookie会复制到执行线程，执行完毕后恢复执行线程原有的Cookie。
+	 * 注意同一CUrl实例不能同时执行多个请求。
+	 * Execute the request asynchronously with the given executor.
+	 * Cookies of the calling thread are copied to the worker thread, and the worker's own cookies are restored after execution,
+	 * so the result does not depend on which pooled thread runs the job, and a caller-runs executor keeps the caller's cookies.
+	 * Use --cookie-jar to get the cookies after execution.
+	 * Note that a CUrl instance can not execute more than one request at the same time.
+	 * @param resolver 输出解析器
+	 * @param fallback 默认返回值
+	 * @param executor 执行请求的Executor
+	 */
+	public final <T> CompletableFuture<T> execAsync(Resolver<T> resolver, T fallback, Executor executor) {
+		// snapshot of the caller's context, a cookie session is shared instead
+		return execAsync(null, resolver, fallback, executor, cookieSession != null ? Collections.<HttpCookie>emptyList() : snapshotCookies());
+	}
+
+	/** Copy cookies of current thread */
+	static List<HttpCookie> snapshotCookies() {
+		List<HttpCookie> cookies = new ArrayList<HttpCookie>();
+		for (HttpCookie c: cookieStore.getCookies()) cookies.add((HttpCookie) c.clone());
+		return cookies;
+	}
+
+	/** Execute the plan (or the options if null) asynchronously with the given cookies installed in the worker thread */
+	final <T> CompletableFuture<T> execAsync(final Plan plan, final Resolver<T> resolver, final T fallback, Executor executor, final List<HttpCookie> cookies) {
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					List<HttpCookie> saved = snapshotCookies(); // e.g. the caller's, if the executor runs the job in place
+					cookieStore.removeAll();
+					for (HttpCookie c: cookies) cookieStore.add(null, (HttpCookie) c.clone());
+					try {
+						future.complete(plan != null ? exec(plan, resolver, fallback) : exec(resolver, fallback));
+					} catch (Throwable e) {
+						future.completeExceptionally(e);
+					} finally {
+						cookieStore.removeAll(); // do not leak cookies to the next job of a pooled thread
+						for (HttpCookie c: saved) cookieStore.add(null, c);
+					}
+				}
+			});
+		} catch (Throwable e) { // RejectedExecutionException
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	/**
+	 * Get the default executor of execAsync. Virtual threads are used if supported by JVM, otherwise a cached pool of daemon threads.
+	 */
+	public static Executor getDefaultExecutor() {
+		Executor executor;
+		if ((executor = defaultExecutor) == null) synchronized (CUrl.class) {
+			if ((executor = defaultExecutor) == null) {
+				executor = (Executor) Util.invokeSilent(null, Executors.class, "newVirtualThreadPerTaskExecutor", false, null);
+				if (executor == null) executor = Executors.newCachedThreadPool(new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "CUrl-async-" + count.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+				defaultExecutor = executor;
+			}
+		}
+		return executor;
+	}
+
+	public static void setDefaultExecutor(Executor executor) {
+		defaultExecutor = executor;
+	}
+
+	/**
+	 * 获取默认传输层，初始为基于HttpURLConnection的实现
+	 * Get the default transport, which is based on HttpURLConnection initially
+	 */
+	public static Transport getDefaultTransport() {
+		return defaultTransport;
+	}
+
+	public static void setDefaultTransport(Transport transport) {
+		defaultTransport = transport;
+	}
+
+	public static DnsCache getDnsCache() {
+		return dnsCache;
+	}
+
+	/**
+	 * 启用DNS缓存，默认为null即使用JVM的缓存
+	 * Enable the DNS cache, null (default) to use the cache of JVM
+	 */
+	public static void setDnsCache(DnsCache cache) {
+		dnsCache = cache;
+	}
+
+	public static CircuitBreakers getCircuitBreakers() {
+		return circuitBreakers;
+	}
+
+	/**
+	 * 启用按host:port划分的熔断器，默认为null即不启用
+	 * Enable circuit breakers per host:port, null (default) to disable
+	 */
+	public static void setCircuitBreakers(CircuitBreakers breakers) {
+		circuitBreakers = breakers;
+	}
+
+	public static RetryBudget getRetryBudget() {
+		return retryBudget;
+	}
+
+	/**
+	 * 设置所有请求共享的重试预算，默认为null即不限制
+	 * Set the retry budget shared by all requests, null (default) for unlimited
+	 */
+	public static void setRetryBudget(RetryBudget budget) {
+		retryBudget = budget;
+	}
+
+	/**
+	 * 获取基于java.net.http.HttpClient的HTTP/2传输层，如运行环境不支持则返回null
+	 * Get the HTTP/2 transport based on java.net.http.HttpClient, or null if not supported by the JVM
+	 */
+	public static Transport getHttp2Transport() {
+		return Http2Holder.INSTANCE;
+	}
+
+	private <T> T execute(Plan plan, Resolver<T> resolver, StreamResolver<T> streamResolver, T fallback) {
 		startTime = System.currentTimeMillis();
+		long origin = System.nanoTime(), hopStart = 0;
 		tags.clear();
 		headers.clear();
 		responseHeaders.clear();
 		locations.clear();
+		timings.clear();
 		execTime = 0;
+		hedges = 0;
+		sizeDownload = 0;
 		httpCode = -1;
 		rawStdout = null;
-		Proxy proxy = Proxy.NO_PROXY;
-		String url = null, redirect = null, method = null, cookie = null, charset = "UTF-8", cert = null;
 		final MemIO stdout = new MemIO();
-		IO stderr = stdout, output = stdout, cookieJar = null, dumpHeader = null;
-		StringBuilder dataSb = new StringBuilder();
-		Map<String, Util.Ref<String>> form = new LinkedHashMap<String, Util.Ref<String>>();
-		float connectTimeout = 0, maxTime = 0, retryDelay = 0, retryMaxTime = 0;
-		int retry = 0, maxDownload = 0;
-		boolean location = false, silent = false, mergeData = false, insecure = false;
-//		boolean ignoreContentLength = false, noKeepAlive = false;
-		Util.mapPut(headers, "Accept", "*/*", "User-Agent", DEFAULT_USER_AGENT);
-		iomap.put("-", stdout);
+		IO stderr = plan.io(plan.stderr, stdout), output = plan.io(plan.output, stdout);
+		IO cookieJar = plan.io(plan.cookieJar, stdout), dumpHeader = plan.io(plan.dumpHeader, stdout);
+		boolean silent = plan.silent;
+		if (plan.error != null) return error(plan, stdout, stderr, plan.error, silent, resolver, streamResolver, fallback);
+		tags.putAll(plan.tags);
+		headers.putAll(plan.headers);
+		Proxy proxy = plan.proxy;
+		String url = plan.url, redirect = null, method = plan.method, cert = plan.cert, cacert = plan.cacert;
+		Map<String, Util.Ref<String>> form = plan.form;
+		String dataStr = plan.dataStr;
+		float connectTimeout = plan.connectTimeout, maxTime = plan.maxTime, retryMaxTime = plan.retryMaxTime;
+		long deadline = maxTime > 0 ? startTime + (long) (maxTime * 1000d) : 0; // --max-time is the total time of the execution
+		int maxDownload = plan.maxDownload;
+		boolean location = plan.location, insecure = plan.insecure, stream = plan.stream || streamResolver != null;
+		Transport transport = defaultTransport;
+		long hedgeAfter = "GET".equals(method) || "HEAD".equals(method) || "OPTIONS".equals(method) ? plan.hedgeAfter : 0;
+		if (plan.http2 && !insecure && proxy.type() != Proxy.Type.SOCKS && getHttp2Transport() != null) transport = getHttp2Transport();
 		Throwable lastEx = null;
-		for (int i = 0, n = options.size(); i < n; i++) {
-			String opt = options.get(i);
-			if (opt.startsWith("http://") || opt.startsWith("https://")) {
-				url = opt;
-				continue;
-			}
-			if (opt.startsWith("--data-urlencode-")) {
-				charset = opt.substring(17);
-				opt = "--data-urlencode";
-			}
-			switch (Util.mapGet(optMap, opt, -1)) {
-				case 32: // --cert  <certificate[:password]> Client certificate file and password
-					cert = options.get(++i);
-					break;
-				case 1: // --compressed  Request compressed response (using deflate or gzip)
-					headers.put("Accept-Encoding", "gzip, deflate");
-					break;
-				case 2: // --connect-timeout  SECONDS  Maximum time allowed for connection
-					connectTimeout = Float.parseFloat(options.get(++i));
-					break;
-				case 3: // --cookie  STRING/FILE  Read cookies from STRING/FILE (H)
-					cookie = options.get(++i);
-					break;
-				case 4: // --cookie-jar  FILE  Write cookies to FILE after operation (H)
-					cookieJar = getIO(options.get(++i));
-					break;
-				case 5: // --data  DATA	 HTTP POST data (H)
-					String data = options.get(++i);
-					if (data.startsWith("@")) data = Util.b2s(readInput(getIO(data.substring(1))), null, null).replaceAll("[\r\n]+", "");
-					mergeData = dataSb.length() > 0;
-					dataSb.append(mergeData ? "&" : "").append(data);
-					break;
-				case 51: // --data-raw  DATA	 not handle "@"
-					mergeData = dataSb.length() > 0;
-					dataSb.append(mergeData ? "&" : "").append(options.get(++i));
-					break;
-				case 52: // --data-binary  DATA	 not stripping CR/LF
-					data = options.get(++i);
-					if (data.startsWith("@")) data = Util.b2s(readInput(getIO(data.substring(1))), null, null);
-					mergeData = dataSb.length() > 0;
-					dataSb.append(mergeData ? "&" : "").append(data);
-					break;
-				case 53: // --data-urlencode
-					mergeData = dataSb.length() > 0;
-					data = options.get(++i);
-					int idx, atIdx;
-					switch (idx = data.indexOf("=")) {
-						case -1: // no '='
-							if ((atIdx = data.indexOf("@")) >= 0) { // [name]@filename
-								String prefix = atIdx > 0 ? data.substring(0, atIdx) + "=" : "";
-								try {
-									data = prefix + URLEncoder.encode(Util.b2s(readInput(getIO(data.substring(atIdx + 1))), null, ""), charset);
-								} catch (Exception e) {
-									lastEx = e;
-								}
-								break;
-							} // else fall through
-						case 0: // =content
-							try {
-								data = URLEncoder.encode(data.substring(idx + 1), charset);
-							} catch (Exception e) {
-								lastEx = e;
-							}
-							break;
-						default: // name=content
-							Map<String, String> m = Util.split(data, "&", "=", new LinkedHashMap<String, String>());
-							for (Map.Entry<String, String> en: m.entrySet()) {
-								try { en.setValue(URLEncoder.encode(en.getValue(), "UTF-8")); } catch (Exception ignored) { }
-							}
-							data = Util.join(m, "&", "=");
-					}
-					dataSb.append(mergeData ? "&" : "").append(data);
-					break;
-				case 6: // --dump-header  FILE  Write the headers to FILE
-					dumpHeader = getIO(options.get(++i));
-					break;
-				case 7: // --form  CONTENT  Specify HTTP multipart POST data (H)
-					data = options.get(++i);
-					idx = data.indexOf('=');
-					form.put(data.substring(0, idx), new Util.Ref<String>(1, data.substring(idx + 1)));
-					break;
-				case 71: // --form-string  STRING  Specify HTTP multipart POST data (H)
-					for (String[] pair: Util.split(options.get(++i), "&", "=")) {
-						form.put(pair[0], new Util.Ref<String>(pair[1]));
-					}
-					break;
-				case 8: // --get  Send the -d data with a HTTP GET (H)
-					method = "GET";
-					break;
-				case 10: // --header  LINE   Pass custom header LINE to server (H)
-					String[] hh = options.get(++i).split(":", 2);
-					String name = hh[0].trim();
-					if (hh.length == 1 && name.endsWith(";")) { // "X-Custom-Header;"
-						headers.put(name.substring(0, name.length() - 1), "");
-					} else if (hh.length == 1 || Util.empty(hh[1])) { // "Host:"
-						headers.remove(name);
-					} else { // "Host: baidu.com"
-						headers.put(name, hh[1].trim());
-					}
-					break;
-				case 11: // --head  Show document info only
-					method = "HEAD";
-					break;
-//			case 12: // --ignore-content-length  Ignore the HTTP Content-Length header
-//				ignoreContentLength = true;
-//				break;
-				case 13: // --location  Follow redirects (H)
-					location = true;
-					break;
-				case 14: // --max-time  SECONDS  Maximum time allowed for the transfer
-					maxTime = Float.parseFloat(options.get(++i));
-					break;
-//			case 15: // --no-keepalive  Disable keepalive use on the connection
-//				noKeepAlive = true;
-//				break;
-				case 16: // --output  FILE   Write to FILE instead of stdout
-					output = getIO(options.get(++i));
-					break;
-				case 17: // --proxy  [PROTOCOL://]HOST[:PORT]  Use proxy on given port
-					String[] pp = options.get(++i).split(":");
-					InetSocketAddress addr = new InetSocketAddress(pp[0], pp.length > 1 ? Integer.parseInt(pp[1]) : 1080);
-					proxy = new Proxy(Proxy.Type.HTTP, addr);
-					break;
-				case 18: // --proxy-user  USER[:PASSWORD]  Proxy user and password
-					final String proxyAuth = options.get(++i);
-					headers.put("Proxy-Authorization", "Basic " + Util.base64Encode(proxyAuth.getBytes()));
-					Authenticator.setDefault(new Authenticator() {
-						@Override
-						protected PasswordAuthentication getPasswordAuthentication() {
-							String[] up = proxyAuth.split(":");
-							return new PasswordAuthentication(up[0], (up.length > 1 ? up[1] : "").toCharArray());
-						}
-					});
-					break;
-				case 19: // --referer  Referer URL (H)
-					headers.put("Referer", options.get(++i));
-					break;
-				case 20: // --retry  NUM   Retry request NUM times if transient problems occur
-					retry = Integer.parseInt(options.get(++i));
-					break;
-				case 21: // --retry-delay  SECONDS  Wait SECONDS between retries
-					retryDelay = Float.parseFloat(options.get(++i));
-					break;
-				case 22: // --retry-max-time  SECONDS  Retry only within this period
-					retryMaxTime = Float.parseFloat(options.get(++i));
-					break;
-				case 23: // --silent  Silent mode (don't output anything)
-					silent = true;
-					break;
-				case 24: // --stderr  FILE   Where to redirect stderr (use "-" for stdout)
-					stderr = getIO(options.get(++i));
-					break;
-				case 25: // --url  URL	   URL to work with
-					url = options.get(++i);
-					break;
-				case 26: // --user-agent  STRING  Send User-Agent STRING to server (H)
-					headers.put("User-Agent", options.get(++i));
-					break;
-				case 27: // --request  COMMAND  Specify request command to use
-					method = options.get(++i);
-					break;
-				case 28: // -u, --user USER[:PASSWORD]  Server user and password
-					headers.put("Authorization", "Basic " + Util.base64Encode(options.get(++i).getBytes()));
-					break;
-				case 29: // --x-max-download  BYTES Maximum bytes allowed for the download
-					maxDownload = Integer.parseInt(options.get(++i));
-					break;
-				case 30: // --x-tags  DATA extra key-value pairs, storage only
-					Util.split(options.get(++i), "&", "=", tags);
-					break;
-				case 31: //
-					insecure = true;
-					break;
-				case 33: //
-					verbose = true;
-					break;
-				case 34: // --cacert file_name to specify the truststore file, "system" for system truststore
-					trustStoreFile = options.get(++i);
-					break;
-
-				default: lastEx = new IllegalArgumentException("option " + opt + ": is unknown");
-			}
-			if (lastEx != null)
-				return error(stdout, stderr, lastEx, silent, resolver, fallback);
-		}
-		if (url == null) {
-			lastEx = new IllegalArgumentException("no URL specified!");
-			return error(stdout, stderr, lastEx, silent, resolver, fallback);
-		}
-		if (dataSb.length() > 0 && form.size() > 0
-				|| dataSb.length() > 0 && "HEAD".equals(method)
-				|| form.size() > 0 && "HEAD".equals(method)) {
-			lastEx = new IllegalArgumentException("Warning: You can only select one HTTP request!");
-			return error(stdout, stderr, lastEx, silent, resolver, fallback);
-		}
-		String dataStr = "";
-		if (form.size() > 0) {
-			if (method == null) method = "POST";
-		} else if (dataSb.length() > 0) {
-			dataStr = !mergeData ? dataSb.toString()
-					: Util.join(Util.split(dataSb.toString(), "&", "=", new LinkedHashMap<String, String>()), "&", "=");
-			if (method == null) method = "POST";
-		}
-		if (method == null) method = "GET";
-//		if (!noKeepAlive) headers.put("Connection", "keep-alive");
-		if (cookie != null) { // --cookie '' will clear the CookieStore
-			cookieStore.removeAll();
+		String cookie = plan.cookie;
+		// cookies are applied explicitly by the transport, the JVM-wide default CookieHandler is not used
+		java.net.CookieStore store = plan.cookieSession != null ? plan.cookieSession : cookieStore.current();
+		CookieHandler cookieHandler = new CookieManager(store, CookiePolicy.ACCEPT_ALL);
+		if (cookie != null) { // --cookie '' will clear the CookieStore, but not the shared session
+			if (plan.cookieSession == null) store.removeAll();
 			if (cookie.indexOf('=') > 0) {
-				parseCookies(url, cookie);
+				parseCookies(url, cookie, store);
 			} else if (cookie.trim().length() > 0) {
-				loadCookies(getIO(cookie));
+				loadCookies(plan.getIO(cookie), store);
 			}
 		}
 
 		boolean needRetry = false;
-		if (dataStr.length() > 0 && "GET".equals(method)) url += (url.contains("?") ? "&" : "?") + dataStr;
 		URL urlObj = null;
-		int retryLeft = retry;
+		RetryPolicy retryPolicy = plan.retryPolicy;
+		RetryBudget budget = retryBudget;
+		if (budget != null) budget.deposit();
+		CircuitBreakers breakers = circuitBreakers;
+		int attempt = 0; // failed attempts of current URL
 		do {
+			CircuitBreaker breaker = null; // not null until the outcome of the attempt is recorded
+			ScheduledFuture<?> watchdog = null;
+			Util.ThrottledInputStream download = null;
+			Timing timing = null;
+			Exchange exchange = null;
+			int attemptCode = -1;
+			long retryAfter = -1;
+			needRetry = false;
+			lastEx = null;
 			try {
 				if (redirect != null) {
 					urlObj = new URL(urlObj, redirect);
@@ -839,58 +1092,50 @@ public final class CUrl {
 				} else {
 					urlObj = new URL(url);
 				}
-				if (retryLeft == retry) { // add at first time
+				if (attempt == 0) { // add at first time
 					if (locations.size() > 51) {
 						redirect = null;
 						throw new RuntimeException("Too many redirects.");
 					}
 					locations.add(urlObj);
-					responseHeaders.add(new ArrayList<String[]>());
+					responseHeaders.add(new Headers());
+					if (redirect != null) hopStart = System.nanoTime() - origin;
 				}
-				if (verbose) {
-					Util.logStderr("Prepare open connection - URL.openConnection()");
+				timings.add(timing = new Timing(origin, urlObj, locations.size() - 1, attempt, hopStart));
+				long remaining = deadline > 0 ? deadline - System.currentTimeMillis() : 0;
+				if (deadline > 0 && remaining <= 0) throw new DeadlineExceededException(maxTime, null);
+				if (breakers != null) {
+					breaker = breakers.get(urlObj.getHost() + ":" + (urlObj.getPort() >= 0 ? urlObj.getPort() : urlObj.getDefaultPort()));
+					if (!breaker.tryAcquire()) {
+						CircuitBreaker open = breaker;
+						breaker = null;
+						throw new CircuitOpenException(open.getHostPort(), open.getRemainingOpenTime());
+					}
 				}
-				HttpURLConnection con = (HttpURLConnection) urlObj.openConnection(proxy);
-				if (verbose) {
-					Util.logStderr("Done prepare open connection");
-				}
-				con.setRequestMethod(method);
-				con.setUseCaches(false);
-				con.setConnectTimeout((int) (connectTimeout * 1000f));
-				con.setReadTimeout((int) (maxTime * 1000f));
-				con.setInstanceFollowRedirects(false);
-				if (con instanceof HttpsURLConnection) {
-										if (insecure) {
+				SSLContext sslContext = null;
+				SSLSocketFactory sslFactory = null;
+				if ("https".equals(urlObj.getProtocol())) {
+					String keyStoreFn = null;
+					String keyStorePass = null;
+					if (insecure) {
 						Util.logStderr("Skip TLS validation");
-						((HttpsURLConnection) con).setHostnameVerifier(insecureVerifier);
-						((HttpsURLConnection) con).setSSLSocketFactory(insecureFactory);
-					} else {
-						String keyStoreFn = null;
-						String keyStorePass = null;
-						if ( cert != null) {
-							Util.logStderr("Enable client cert");
-							int idx = cert.lastIndexOf(':');
-							keyStoreFn = cert.substring(0, idx);
-							keyStorePass = cert.substring(idx + 1);
-						}
-						((HttpsURLConnection) con).setSSLSocketFactory(getSocketFactory(getIO(keyStoreFn), keyStorePass, false));
+					} else if (cert != null) {
+						Util.logStderr("Enable client cert");
+						int idx = cert.lastIndexOf(':');
+						keyStoreFn = cert.substring(0, idx);
+						keyStorePass = cert.substring(idx + 1);
 					}
+					// the same factory instance is required by JDK to resume TLS sessions and to reuse keep-alive connections
+					SslContextCache.CachedContext ssl = sslContextCache.get(plan.getIO(keyStoreFn), keyStorePass, cacert, insecure);
+					sslContext = ssl.context;
+					sslFactory = ssl.factory;
 				}
-				if (verbose) {
-					Util.logStderr("Prepare headers");
-				}
-				for (Map.Entry<String, String> h: headers.entrySet()) con.setRequestProperty(h.getKey(), h.getValue());
-				if (verbose) {
-					Util.logStderr("Done preparing headers");
-				}
+				Map<String, String> reqHeaders = new LinkedHashMap<String, String>(headers);
+				Body reqBody = null;
 				if ("POST".equals(method) || "PUT".equals(method)) {
-					con.setDoInput(true);
-					con.setDoOutput(true);
-					byte[] data;
 					if (form.size() > 0) { // it's upload
-						con.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + BOUNDARY);
-						ByteArrayOutputStream os = new ByteArrayOutputStream();
-						byte[] bb;
+						reqHeaders.put("Content-Type", "multipart/form-data; boundary=" + BOUNDARY);
+						Multipart mp = new Multipart();
 						for (Map.Entry<String, Util.Ref<String>> en: form.entrySet()) {
 							String name = en.getKey(), filename = null, type = null;
 							Util.Ref<String> val = en.getValue();
@@ -905,62 +1150,72 @@ public final class CUrl {
 									}
 								}
 								if (_1st.startsWith("@") || _1st.startsWith("<")) { // it's file
-									IO in = getIO(_1st.substring(1));
+									IO in = plan.getIO(_1st.substring(1));
 									File f = in instanceof FileIO ? ((FileIO) in).f : null;
 									filename = _1st.startsWith("<") ? null :
 											filename != null ? filename : f != null ? f.getAbsolutePath() : name;
 									if (f != null && !(f.exists() && f.isFile() && f.canRead()))
 										throw new IllegalArgumentException("couldn't open file \"" + filename + "\"");
-									bb = readInput(in);
+									mp.add(name, filename, type, in);
 								} else {
-									bb = Util.s2b(_1st, null);
+									mp.add(name, null, type, Util.s2b(_1st, null));
 								}
 							} else {
-								bb = Util.s2b(val.get(), null);
+								mp.add(name, null, null, Util.s2b(val.get(), null));
 							}
-							os.write(("--" + BOUNDARY + "\r\n").getBytes());
-							os.write(("Content-Disposition: form-data; name=\"" + name + "\"").getBytes());
-							if (filename != null) os.write(("; filename=\"" + filename + "\"").getBytes());
-							if (type != null) os.write(("\r\nContent-Type: " + type).getBytes());
-							os.write(NEWLINE);
-							os.write(NEWLINE);
-							os.write(bb);
-							os.write(NEWLINE);
 						}
-						os.write(("--" + BOUNDARY + "--\r\n").getBytes());
-						data = os.toByteArray();
+						reqBody = mp;
 					} else {
-						data = Util.s2b(dataStr, null); // UTF-8
-//						if (!ignoreContentLength) {
-						con.setRequestProperty("Content-Length", Integer.toString(data.length));
-						if (!headers.containsKey("Content-Type")) {
-							con.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+						reqBody = plan.dataIO != null ? new IOBody(plan.dataIO) // --data-binary @file, raw bytes
+								: new BytesBody(Util.s2b(dataStr, null)); // UTF-8
+						if (!reqHeaders.containsKey("Content-Type")) {
+							reqHeaders.put("Content-Type", "application/x-www-form-urlencoded");
 						}
 					}
+				}
+				int connectMs = (int) (connectTimeout * 1000f), readMs = 0;
+				if (deadline > 0) { // the remaining time of the execution
+					readMs = (int) Math.min(remaining, Integer.MAX_VALUE);
+					if (connectMs <= 0 || connectMs > readMs) connectMs = readMs;
+				}
+				if (plan.speedLimit > 0 && (readMs <= 0 || readMs > plan.speedTime * 1000)) {
+					readMs = plan.speedTime * 1000; // a stalled transfer times out, which is counted as a slow sample
+				}
+				InetAddress[] addresses = resolve(plan, urlObj, proxy);
+				timing.markNamelookup();
+				Request request = new Request(urlObj, method, reqHeaders, reqBody, proxy, connectMs, readMs, sslContext, sslFactory, insecure, addresses, cookieHandler, timing);
+				if (deadline > 0) watchdog = Watchdog.schedule(request, deadline - System.currentTimeMillis()); // slow uploads and responses
+				Exchange con;
+				if (hedgeAfter > 0) {
+					Hedge hedge = new Hedge(transport, request);
 					try {
-						if (verbose) {
-							Util.logStderr("Start getOutputStream");
-						}
-						OutputStream os = con.getOutputStream();
-						os.write(data);
-						os.flush();
-						if (verbose) {
-							Util.logStderr("Done sending data");
-						}
-					} catch (Exception ex) { // connect timeout
-						throw new Recoverable(ex, -1);
+						con = hedge.exec(hedgeAfter);
+					} finally {
+						if (hedge.hedged) hedges++;
 					}
+				} else {
+					con = transport.open(request);
 				}
+				exchange = con;
+				request.onAbort(con::cancel); // slow-drip responses
+				timing.markPretransfer();
 				redirect = null;
 				if (verbose) {
-					Util.logStderr("Get HTTP Response Code - HttpURLConnection.getResponseCode()");
+					Util.logStderr("Get HTTP Response Code - Exchange.getResponseCode()");
+				}
+				attemptCode = httpCode = con.getResponseCode();
+				timing.markStarttransfer();
+				if (breaker != null) {
+					if (httpCode >= 500) breaker.onFailure();
+					else breaker.onSuccess();
+					breaker = null;
 				}
-				httpCode = con.getResponseCode();
 				if (httpCode >= 300 && httpCode < 400) redirect = con.getHeaderField("Location");
+				if (httpCode == 429 || httpCode == 503) retryAfter = parseRetryAfter(con.getHeaderField("Retry-After"));
 				if (verbose) {
 					Util.logStderr("HTTP Response Code: %d", httpCode);
 				}
-				if (redirect != null) retryLeft = retry;
+				if (redirect != null) attempt = 0;
 				InputStream is;
 				try {
 					if (verbose) {
@@ -976,58 +1231,167 @@ public final class CUrl {
 					is = con.getErrorStream();
 				}
 				if (is == null && lastEx != null) throw lastEx;
+				if (is != null) is = download = new Util.ThrottledInputStream(is, plan.limitRate, plan.speedLimit, plan.speedTime);
+				int idx = locations.size() - 1;
+				Headers hh = con.getResponseHeaders();
+				responseHeaders.set(idx, hh);
+				if (dumpHeader != null) dumpHeader(hh, dumpHeader);
 				if (verbose) {
 					Util.logStderr("Start reading output");
 				}
-				byte bb[] = Util.readStream(is, maxDownload, true), b0, b1;
+				if (streamResolver != null && lastEx == null && !silent && output == stdout && (redirect == null || !location)) {
+					InputStream body = is == null ? new ByteArrayInputStream(new byte[0])
+							: maxDownload > 0 ? new Util.BoundedInputStream(is, maxDownload) : Util.decompress(is);
+					T result = fallback;
+					try {
+						result = streamResolver.resolve(httpCode, body);
+					} catch (Throwable ignored) {
+					} finally {
+						try { body.close(); } catch (Exception ignored) {}
+					}
+					checkDeadline(deadline, maxTime, download);
+					endAttempt(timing, httpCode, download);
+					writeOut(plan, stdout);
+					rawStdout = stdout.toByteArray();
+					execTime = System.currentTimeMillis() - startTime;
+					if (cookieJar != null) saveCookies(cookieJar, store);
+					return result;
+				} else if (stream) {
+					if (is != null) streamOutput(output, maxDownload > 0 ? new Util.BoundedInputStream(is, maxDownload) : Util.decompress(is), output == dumpHeader);
+				} else {
+					byte bb[] = Util.readStream(is, maxDownload, true, contentLength(con)), b0, b1;
+					if (maxDownload <= 0 && bb != null && bb.length > 2) {
+						if ((b0 = bb[0]) == 0x1F && bb[1] == (byte) 0x8B) is = new GZIPInputStream(new ByteArrayInputStream(bb)); // gzip
+						if (b0 == 0x78 && ((b1 = bb[1]) == 0x01 || b1 == 0x5E || b1 == (byte) 0x9C || b1 == (byte) 0xDA)) is = new InflaterInputStream(new ByteArrayInputStream(bb)); // deflate/zlib
+						if (is instanceof InflaterInputStream) bb = Util.readStream(is, false);
+					}
+					if (bb != null && bb.length > 0) writeOutput(output, bb, output == dumpHeader);
+				}
 				if (verbose) {
 					Util.logStderr("Done reading output");
 				}
-				if (maxDownload <= 0 && bb != null && bb.length > 2) {
-					if ((b0 = bb[0]) == 0x1F && bb[1] == (byte) 0x8B) is = new GZIPInputStream(new ByteArrayInputStream(bb)); // gzip
-					if (b0 == 0x78 && ((b1 = bb[1]) == 0x01 || b1 == 0x5E || b1 == (byte) 0x9C || b1 == (byte) 0xDA)) is = new InflaterInputStream(new ByteArrayInputStream(bb)); // deflate/zlib
-					if (is instanceof InflaterInputStream) bb = Util.readStream(is, false);
-				}
-				int idx = locations.size() - 1;
-				fillResponseHeaders(con, responseHeaders.get(idx));
-				if (dumpHeader != null) dumpHeader(responseHeaders.get(idx), dumpHeader);
-				if (bb != null && bb.length > 0) writeOutput(output, bb, output == dumpHeader);
+				checkDeadline(deadline, maxTime, download);
 				if (lastEx != null) throw lastEx;
 				if (redirect == null || !location) {
+					endAttempt(timing, httpCode, download);
+					writeOut(plan, stdout);
 					rawStdout = stdout.toByteArray();
 					execTime = System.currentTimeMillis() - startTime;
-					if (cookieJar != null) saveCookies(cookieJar);
-					return silent ? fallback : getStdout(resolver, fallback);
+					if (cookieJar != null) saveCookies(cookieJar, store);
+					// in stream mode, the resolver is only applied when the response data is written to stdout
+					return silent || stream && output != stdout ? fallback : getStdout(resolver, fallback);
 				}
 			} catch (Throwable e) {
-				needRetry = isRecoverable(e.getClass());
+				if (e instanceof RuntimeException && e.getCause() instanceof LowSpeedException) e = e.getCause(); // from pipeStream
 				lastEx = e instanceof Recoverable ? e.getCause() : e;
-				if (needRetry && retryLeft > 0 && retryDelay > 0)
-					try { Thread.sleep((long) (retryDelay * 1000d)); } catch (Exception ignored) {}
+				if (breaker != null) { // no response
+					if (isRecoverable(e.getClass())) breaker.onFailure();
+					else breaker.release();
+				}
+				if (deadline > 0 && !(e instanceof DeadlineExceededException) && System.currentTimeMillis() >= deadline) {
+					e = lastEx = new DeadlineExceededException(maxTime, lastEx); // timed out, or aborted by the watchdog
+				}
+				long delay = e instanceof CircuitOpenException || e instanceof DeadlineExceededException ? -1
+						: retryPolicy.nextDelay(++attempt, attemptCode, e, retryAfter);
+				long now = System.currentTimeMillis();
+				needRetry = delay >= 0
+						&& (retryMaxTime <= 0 || now - startTime + delay < (long) (retryMaxTime * 1000d))
+						&& (deadline <= 0 || now + delay < deadline)
+						&& (budget == null || budget.tryWithdraw());
+				if (verbose && needRetry) {
+					Util.logStderr("Retry #%d in %d ms", attempt, delay);
+				}
+				if (needRetry && delay > 0)
+					try { Thread.sleep(delay); } catch (Exception ignored) {}
+			} finally {
+				if (watchdog != null) watchdog.cancel(false);
+				if (exchange != null) exchange.release();
+				endAttempt(timing, attemptCode, download);
 			}
-		} while (location && redirect != null || needRetry && --retryLeft >= 0
-				&& (retryMaxTime <= 0 || System.currentTimeMillis() - startTime < (long) (retryMaxTime * 1000d)));
-		return error(stdout, stderr, lastEx, silent, resolver, fallback);
+		} while (location && redirect != null || needRetry);
+		return error(plan, stdout, stderr, lastEx, silent, resolver, streamResolver, fallback);
 	}
 
-	/** 根据key获取对应IO，如果iomap中没有，则key作为文件路径创建一个FileIO  */
-	private IO getIO(String key) {
-		IO io;
-		if (key == null || key.isEmpty()) {
-			return null;
+	/** 读取超时或被中止的应答数据不完整，不能作为成功返回 / A response read up to the deadline is truncated, not a success */
+	private static void checkDeadline(long deadline, float maxTime, Util.ThrottledInputStream download) throws DeadlineExceededException {
+		if (deadline > 0 && (download != null && download.isTimedOut() || System.currentTimeMillis() >= deadline)) {
+			throw new DeadlineExceededException(maxTime, null);
+		}
+	}
+
+	/** Resolve the first hop, i.e. the proxy if any, otherwise the host. --resolve takes precedence over the DNS cache */
+	private static InetAddress[] resolve(Plan plan, URL url, Proxy proxy) throws UnknownHostException {
+		String host;
+		int port;
+		if (proxy.type() == Proxy.Type.DIRECT) {
+			host = url.getHost();
+			port = url.getPort() >= 0 ? url.getPort() : url.getDefaultPort();
+		} else {
+			InetSocketAddress addr = (InetSocketAddress) proxy.address();
+			if (!addr.isUnresolved()) return new InetAddress[] { addr.getAddress() };
+			host = addr.getHostString();
+			port = addr.getPort();
+		}
+		InetAddress[] addresses = plan.resolve.get(host.toLowerCase() + ":" + port);
+		if (addresses != null) return addresses;
+		DnsCache cache = dnsCache;
+		return cache != null ? cache.resolve(host) : InetAddress.getAllByName(host); // the latter warms the JVM cache for the transport
+	}
+
+	/** --resolve HOST:PORT:ADDR[,ADDR]..., IPv6 addresses may be enclosed in brackets */
+	private static void parseResolve(String value, Map<String, InetAddress[]> resolve) {
+		String[] parts = value.split(":", 3);
+		if (parts.length < 3) throw new IllegalArgumentException("--resolve " + value + ": HOST:PORT:ADDR expected");
+		String[] addrs = parts[2].split(",");
+		InetAddress[] addresses = new InetAddress[addrs.length];
+		for (int i = 0; i < addrs.length; i++) {
+			String addr = addrs[i].trim();
+			if (addr.startsWith("[") && addr.endsWith("]")) addr = addr.substring(1, addr.length() - 1);
+			if (!addr.matches("[0-9.]+|[0-9a-fA-F:.]*:[0-9a-fA-F:.]*")) throw new IllegalArgumentException("--resolve " + value + ": not an IP address: " + addr);
+			try {
+				addresses[i] = InetAddress.getByName(addr); // literal, no lookup
+			} catch (UnknownHostException e) {
+				throw new IllegalArgumentException("--resolve " + value + ": " + e.getMessage());
+			}
 		}
-		return (io = iomap.get(key)) == null ? new FileIO(key) : io;
+		resolve.put(parts[0].toLowerCase() + ":" + Integer.parseInt(parts[1]), addresses);
 	}
 
-	private <T> T error(IO stdout, IO stderr, Throwable ex, boolean silent, Resolver<T> rr, T fallback) {
+	/** Record the end of an attempt */
+	private void endAttempt(Timing timing, int code, Util.ThrottledInputStream download) {
+		sizeDownload = download != null ? download.getCount() : 0;
+		if (timing != null) timing.finish(code, sizeDownload);
+	}
+
+	/** --write-out */
+	private void writeOut(Plan plan, IO stdout) {
+		Timing timing = getTiming();
+		if (plan.writeOut != null && timing != null) writeOutput(stdout, Util.s2b(timing.format(plan.writeOut), null), true);
+	}
+
+	private static void putHeader(Map<String, String> headers, String headerLine) {
+		String[] hh = headerLine.split(":", 2);
+		String name = hh[0].trim();
+		if (hh.length == 1 && name.endsWith(";")) { // "X-Custom-Header;"
+			headers.put(name.substring(0, name.length() - 1), "");
+		} else if (hh.length == 1 || Util.empty(hh[1])) { // "Host:"
+			headers.remove(name);
+		} else { // "Host: baidu.com"
+			headers.put(name, hh[1].trim());
+		}
+	}
+
+	private <T> T error(Plan plan, IO stdout, IO stderr, Throwable ex, boolean silent, Resolver<T> rr, StreamResolver<T> sr, T fallback) {
 		writeOutput(stderr, Util.dumpStackTrace(ex, false).getBytes(), true);
-		httpCode = ex instanceof Recoverable ? ((Recoverable) ex).httpCode : -1;
+		httpCode = ex instanceof Recoverable ? ((Recoverable) ex).httpCode
+				: ex instanceof DeadlineExceededException || ex instanceof LowSpeedException ? DeadlineExceededException.HTTP_CODE : -1;
+		writeOut(plan, stdout);
 		rawStdout = ((MemIO) stdout).toByteArray();
 		execTime = System.currentTimeMillis() - startTime;
-		return silent ? fallback : getStdout(rr, fallback);
+		return silent ? fallback : sr != null ? getStdoutStream(sr, fallback) : getStdout(rr, fallback);
 	}
 
-	private static void parseCookies(String url, String input) {
+	private static void parseCookies(String url, String input, java.net.CookieStore store) {
 		String host = null;
 		try { host = new URI(url).getHost(); } catch (Exception ignored) { }
 		for (String[] pair: Util.split(input, ";", "=")) {
@@ -1035,42 +1399,49 @@ public final class CUrl {
 			cookie.setDomain(host);
 			cookie.setPath("/");
 			cookie.setSecure(false);
-			cookieStore.add(null, cookie);
+			store.add(null, cookie);
 		}
 	}
 
-	private static String unquote(String s) {
-		return s.startsWith("'") && s.endsWith("'") || s.startsWith("\"") && s.endsWith("\"") ?
-				s.substring(1, s.length() - 1) : s;
+	/** @return Retry-After指定的等待毫秒数（秒数或HTTP日期），如无或无法解析则返回-1 */
+	static long parseRetryAfter(String value) {
+		if (value == null || (value = value.trim()).isEmpty()) return -1;
+		try {
+			return Math.max(0, Long.parseLong(value) * 1000L);
+		} catch (NumberFormatException ignored) {}
+		try {
+			SimpleDateFormat fmt = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+			return Math.max(0, fmt.parse(value).getTime() - System.currentTimeMillis());
+		} catch (Exception ignored) {}
+		return -1;
 	}
 
-	private static void fillResponseHeaders(HttpURLConnection con, List<String[]> headers) {
-		headers.clear();
-		Object responses = Util.getField(con, null, "responses", null, true); // sun.net.www.MessageHeader
-		if (responses == null) { // con is sun.net.www.protocol.https.HttpsURLConnectionImpl
-			Object delegate = Util.getField(con, null, "delegate", null, true);
-			if (delegate != null) responses = Util.getField(delegate, null, "responses", null, true);
-		}
-		String[] keys, values;
-		Integer nkeys;
-		if (responses != null && (nkeys = (Integer) Util.getField(responses, null, "nkeys", null, true)) != null
-				&& (keys = (String[]) Util.getField(responses, null, "keys", null, true)) != null
-				&& (values = (String[]) Util.getField(responses, null, "values", null, true)) != null) {
-			for (int i = 0; i < nkeys; i++) headers.add(new String[] { keys[i], values[i] });
-		} else {
-			try { headers.add(new String[] { null, con.getResponseMessage() }); } catch (Exception ignored) {}
-			for (int i = 0; ; i++) {
-				String k = con.getHeaderFieldKey(i), v = con.getHeaderField(i);
-				if (k == null && v == null) break;
-				headers.add(new String[] { k, v });
-			}
+	/** @return 应答的Content-Length，未知时返回-1 */
+	private static long contentLength(Exchange con) {
+		try { return Long.parseLong(con.getHeaderField("Content-Length").trim()); } catch (Exception e) { return -1; }
+	}
+
+	/** 缓存Basic认证头，通常每个请求都使用相同的用户名密码 / Cached value of the Basic authorization header */
+	static String basicAuth(String credentials) {
+		String auth = basicAuthCache.get(credentials);
+		if (auth == null) {
+			if (basicAuthCache.size() >= BASIC_AUTH_CACHE_SIZE) basicAuthCache.clear(); // bounded, for rotating credentials
+			basicAuthCache.put(credentials, auth = "Basic " + Util.base64Encode(credentials.getBytes()));
 		}
+		return auth;
+	}
+
+	private static String unquote(String s) {
+		return s.startsWith("'") && s.endsWith("'") || s.startsWith("\"") && s.endsWith("\"") ?
+				s.substring(1, s.length() - 1) : s;
 	}
 
-	private static void dumpHeader(List<String[]> headers, IO dumpHeader) throws Exception {
+	private static void dumpHeader(Headers headers, IO dumpHeader) throws Exception {
 		ByteArrayOutputStream bos = new ByteArrayOutputStream();
-		for (String[] kv: headers)
-			bos.write(((kv[0] != null ? kv[0] + ": " : "") + (kv[1] != null ? kv[1] : "") + "\r\n").getBytes());
+		for (int i = 0, n = headers.size(); i < n; i++) {
+			String k = headers.getName(i), v = headers.getValue(i);
+			bos.write(((k != null ? k + ": " : "") + (v != null ? v : "") + "\r\n").getBytes());
+		}
 		bos.write(NEWLINE);
 		writeOutput(dumpHeader, bos.toByteArray(), false);
 	}
@@ -1084,14 +1455,159 @@ public final class CUrl {
 		return bb;
 	}
 
-	/** 把数据输出到IO，如不适用则直接返回。如append为true则向数据IO添加，否则覆盖。*/
-	private static void writeOutput(IO out, byte[] bb, boolean append) {
-		out.setAppend(append);
-		OutputStream os = out.getOutputStream();
-		if (os == null) return;
-		try {
-			os.write(bb);
-			os.flush();
+	/**
+	 * 请求体，直接写入连接的输出流而不在内存中整体组装
+	 * Request body which is written directly to the connection instead of being assembled in memory
+	 */
+	public abstract static class Body {
+		/** @return 字节长度，未知时返回-1 / length in bytes, or -1 if unknown */
+		public abstract long length();
+		public abstract void writeTo(OutputStream os) throws IOException;
+		/** 以输入流的形式读取请求体，供需要拉取数据的传输层使用 / Read the body as a stream, for transports pulling the data */
+		public abstract InputStream openStream() throws IOException;
+	}
+
+	static final class BytesBody extends Body {
+		private final byte[] data;
+		BytesBody(byte[] data) { this.data = data; }
+		public long length() { return data.length; }
+		public void writeTo(OutputStream os) throws IOException { os.write(data); }
+		public InputStream openStream() { return new ByteArrayInputStream(data); }
+	}
+
+	/** 直接从IO读取的原始请求体 / Raw request body read from an IO */
+	static final class IOBody extends Body {
+		private final IO in;
+		IOBody(IO in) { this.in = in; }
+		public long length() { return ioLength(in); }
+		public void writeTo(OutputStream os) throws IOException { copyInput(in, os); }
+		public InputStream openStream() throws IOException { return openInput(in); }
+	}
+
+	/**
+	 * multipart/form-data请求体，文件部分在发送时才从IO中分块读取，Content-Length根据各部分大小预先计算
+	 * Streaming multipart/form-data body, file parts are copied from their IO in chunks while sending,
+	 * Content-Length is computed ahead of time from the size of each part
+	 */
+	static final class Multipart extends Body {
+		private final List<Object> parts = new ArrayList<Object>(); // byte[] or IO
+
+		void add(String name, String filename, String type, Object content) {
+			StringBuilder sb = new StringBuilder("--").append(BOUNDARY).append("\r\n");
+			sb.append("Content-Disposition: form-data; name=\"").append(name).append("\"");
+			if (filename != null) sb.append("; filename=\"").append(filename).append("\"");
+			if (type != null) sb.append("\r\nContent-Type: ").append(type);
+			sb.append("\r\n\r\n");
+			parts.add(Util.s2b(sb.toString(), null));
+			parts.add(content);
+			parts.add(NEWLINE);
+		}
+
+		public long length() {
+			long total = BOUNDARY.length() + 6; // "--" + BOUNDARY + "--\r\n"
+			for (Object p: parts) {
+				long len = p instanceof byte[] ? ((byte[]) p).length : ioLength((IO) p);
+				if (len < 0) return -1;
+				total += len;
+			}
+			return total;
+		}
+
+		public void writeTo(OutputStream os) throws IOException {
+			for (Object p: parts) {
+				if (p instanceof byte[]) os.write((byte[]) p);
+				else copyInput((IO) p, os);
+			}
+			os.write(Util.s2b("--" + BOUNDARY + "--\r\n", null));
+		}
+
+		public InputStream openStream() {
+			final Iterator<Object> it = parts.iterator();
+			return new SequenceInputStream(new Enumeration<InputStream>() {
+				private boolean end = false;
+				public boolean hasMoreElements() { return !end; }
+				public InputStream nextElement() {
+					if (!it.hasNext()) {
+						end = true;
+						return new ByteArrayInputStream(Util.s2b("--" + BOUNDARY + "--\r\n", null));
+					}
+					Object p = it.next();
+					try { // the streams are opened one by one while reading
+						return p instanceof byte[] ? new ByteArrayInputStream((byte[]) p) : openInput((IO) p);
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			});
+		}
+	}
+
+	/** 返回IO中可读数据的长度，未知时返回-1 */
+	static long ioLength(IO in) {
+		if (in instanceof FileIO) return ((FileIO) in).f.length();
+		if (in instanceof MemIO) return ((MemIO) in).size();
+		return -1;
+	}
+
+	private static final int TRANSFER_CHUNK = 64 * 1024;
+
+	/** 打开IO的输入流，文件不共享FileIO的流，如不适用则返回空流 */
+	static InputStream openInput(IO in) throws IOException {
+		if (in instanceof FileIO) return new FileInputStream(((FileIO) in).f);
+		InputStream is = in.getInputStream();
+		return is != null ? is : new ByteArrayInputStream(new byte[0]);
+	}
+
+	/** 把IO中的数据分块复制到输出流，文件通过FileChannel传输且不共享FileIO的流，因此可被多个线程同时上传 */
+	static void copyInput(IO in, OutputStream os) throws IOException {
+		if (in instanceof FileIO) {
+			FileInputStream fis = new FileInputStream(((FileIO) in).f);
+			try {
+				FileChannel ch = fis.getChannel();
+				WritableByteChannel target = Channels.newChannel(os);
+				for (long pos = 0, size = ch.size(); pos < size; ) {
+					long n = ch.transferTo(pos, Math.min(TRANSFER_CHUNK, size - pos), target);
+					if (n <= 0) break;
+					pos += n;
+				}
+			} finally {
+				fis.close();
+			}
+			return;
+		}
+		InputStream is = in.getInputStream();
+		if (is == null) return;
+		try {
+			while (Util.pipeStream(is, os) > 0);
+		} finally {
+			in.close();
+		}
+	}
+
+	/** 把输入流分块输出到IO并关闭输入流，如不适用则丢弃数据。如append为true则向数据IO添加，否则覆盖。*/
+	private static void streamOutput(IO out, InputStream is, boolean append) {
+		out.setAppend(append);
+		OutputStream os = out.getOutputStream();
+		try {
+			if (os == null) os = Util.NULL_OUTPUT; // still drain the stream
+			while (Util.pipeStream(is, os) > 0);
+			os.flush();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			try { is.close(); } catch (Exception ignored) {}
+			out.close();
+		}
+	}
+
+	/** 把数据输出到IO，如不适用则直接返回。如append为true则向数据IO添加，否则覆盖。*/
+	private static void writeOutput(IO out, byte[] bb, boolean append) {
+		out.setAppend(append);
+		OutputStream os = out.getOutputStream();
+		if (os == null) return;
+		try {
+			os.write(bb);
+			os.flush();
 		} catch (Exception e) {
 			Util.logStderr("CUrl.writeOutput: out=%s,bb=%s,append=%s,ex=%s", out, bb, append, Util.dumpStackTrace(e, true));
 		}
@@ -1113,25 +1629,34 @@ public final class CUrl {
 		return false;
 	}
 
-	private static X509TrustManager getTrustManager() throws KeyStoreException {
-		if ( trustStoreFile.equals("system") ) {
+	/**
+	 * Build trust manager from the given truststore, "system" for the default truststore of JRE
+	 * @param trustStoreFile &lt;truststore[:password]&gt;
+	 */
+	private static X509TrustManager loadTrustManager(String trustStoreFile) throws KeyStoreException {
+		KeyStore trustStore = null;
+		if (trustStoreFile.equals("system")) {
 			Util.logStderr("Load default trust manager"); // default behavior
-			return null;
-		}
-		try {
-			KeyStore trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
-			Util.logStderr("Build trust manager from file: " + trustStoreFile);
+		} else {
 			int idx = trustStoreFile.lastIndexOf(':');
-			if (idx < 0) {
-				FileInputStream inputStream = new FileInputStream(String.valueOf(trustStoreFile));
-				trustStore.load(inputStream, null);
-			} else {
-				FileInputStream inputStream = new FileInputStream(String.valueOf(trustStoreFile.substring(0, idx)));
-				trustStore.load(inputStream, trustStoreFile.substring(idx + 1).toCharArray());
+			String path = idx < 0 ? trustStoreFile : trustStoreFile.substring(0, idx);
+			char[] password = idx < 0 ? null : trustStoreFile.substring(idx + 1).toCharArray();
+			Util.logStderr("Build trust manager from file: " + path);
+			FileInputStream inputStream = null;
+			try {
+				trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
+				trustStore.load(inputStream = new FileInputStream(path), password);
+			} catch (IOException e) {
+				throw new KeyStoreException("TrustStore file not found or failed to load: " + e.getMessage());
+			} catch (NoSuchAlgorithmException | CertificateException e) {
+				throw new KeyStoreException("Failed to parse truststore: " + e.getMessage());
+			} finally {
+				try { if (inputStream != null) inputStream.close(); } catch (Exception ignored) {}
 			}
+		}
+		try {
 			TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
 			trustManagerFactory.init(trustStore);
-
 			TrustManager[] trustManagers = trustManagerFactory.getTrustManagers();
 			if (trustManagers.length == 0) {
 				throw new KeyStoreException("No TrustManagers found");
@@ -1141,18 +1666,17 @@ public final class CUrl {
 					.map(tm -> (X509TrustManager) tm)
 					.findFirst()
 					.orElseThrow(() -> new KeyStoreException("No X509TrustManager found"));
-		} catch (IOException e) {
-			throw new KeyStoreException("TrustStore file not found or failed to load: " + e.getMessage());
-		} catch (NoSuchAlgorithmException | CertificateException e) {
+		} catch (NoSuchAlgorithmException e) {
 			throw new KeyStoreException("Failed to parse truststore: " + e.getMessage());
 		}
 	}
 
-	private static SSLSocketFactory getSocketFactory(IO cert, String password, Boolean insecure) throws Exception {
+	private static SSLContext createSslContext(IO cert, String password, final String trustStoreFile, final boolean insecure) throws Exception {
 		TrustManager[] t_managers=null;
         KeyManager[]   k_managers=null;
+		final X509TrustManager trustManager = insecure ? null : trustStoreRegistry.get(trustStoreFile);
 		t_managers = new TrustManager[] { new X509TrustManager() {
-			public X509Certificate[] getAcceptedIssuers() { return null; }
+			public X509Certificate[] getAcceptedIssuers() { return trustManager != null ? trustManager.getAcceptedIssuers() : new X509Certificate[0]; }
 			public void checkClientTrusted(X509Certificate[] arg0, String arg1) {}
 			public void checkServerTrusted(X509Certificate[] certs, String authType) throws CertificateException {
 				if (verbose) {
@@ -1163,20 +1687,9 @@ public final class CUrl {
 					}
 				}
 				if (insecure) {
-					return; // no need to build the trustManager, just return (success)
-				}
-				try {
-					final X509TrustManager trustManager = getTrustManager();
-					if (trustManager != null) {
-						trustManager.checkServerTrusted(certs, authType);
-					}
-				} catch (KeyStoreException e) {
-					try {
-						throw new CertificateException(e.getMessage());
-					} catch (Exception ex) {
-						throw new RuntimeException(ex);
-					}
+					return; // no need to check the trustManager, just return (success)
 				}
+				trustManager.checkServerTrusted(certs, authType);
 			}
 		}};
 		if (cert != null) {
@@ -1193,15 +1706,418 @@ public final class CUrl {
 		}
 		SSLContext sc = SSLContext.getInstance("TLS");
 		sc.init(k_managers, t_managers, new SecureRandom());
-		return sc.getSocketFactory();
+		return sc;
 	}
 
 	///////////////////////////// Inner Classes & static instances ///////////////////////////////////////
 
+	/**
+	 * 预编译的请求计划，由{@link #compile()}生成。不可变，可在多线程间共享。
+	 * Pre-compiled request plan created by {@link #compile()}. All options are parsed, headers are built, and the data inputs
+	 * are read and encoded once, so the plan can be executed repeatedly by {@link #exec(Plan, Resolver, Object)}.
+	 * It's immutable and can be shared among threads, use {@link #bind(String, String...)} to override URL or headers per call.
+	 */
+	public static final class Plan {
+		final Map<String, IO> iomap;
+		final Map<String, String> tags, headers;
+		final Map<String, Util.Ref<String>> form;
+		final Map<String, InetAddress[]> resolve;
+		final Proxy proxy;
+		final String url, method, dataStr, cookie, cert, cacert, writeOut;
+		final IO output, stderr, cookieJar, dumpHeader, dataIO;
+		final float connectTimeout, maxTime, retryDelay, retryMaxTime;
+		final int retry, maxDownload;
+		final RetryPolicy retryPolicy;
+		final CookieSession cookieSession;
+		final long hedgeAfter, limitRate, speedLimit;
+		final int speedTime;
+		final boolean location, silent, insecure, stream, http2;
+		final Throwable error;
+
+		private Plan(List<String> options, Map<String, IO> iomap, RetryPolicy retryPolicy, CookieSession cookieSession) {
+			this.iomap = Collections.unmodifiableMap(new HashMap<String, IO>(iomap));
+			Map<String, String> tags = new LinkedHashMap<String, String>(), headers = new LinkedHashMap<String, String>();
+			Proxy proxy = Proxy.NO_PROXY;
+			String url = null, method = null, cookie = null, charset = "UTF-8", cert = null, cacert = "system", writeOut = null;
+			IO stderr = STDOUT, output = STDOUT, cookieJar = null, dumpHeader = null, dataIO = null;
+			StringBuilder dataSb = new StringBuilder();
+			Map<String, Util.Ref<String>> form = new LinkedHashMap<String, Util.Ref<String>>();
+			Map<String, InetAddress[]> resolve = new HashMap<String, InetAddress[]>();
+			float connectTimeout = 0, maxTime = 0, retryDelay = 0, retryMaxTime = 0;
+			int retry = 0, maxDownload = 0;
+			long hedgeAfter = 0, limitRate = 0, speedLimit = 0;
+			int speedTime = -1;
+			boolean location = false, silent = false, mergeData = false, insecure = false, stream = false, http2 = false, retryAllErrors = false;
+			boolean noKeepAlive = false;
+//			boolean ignoreContentLength = false;
+			Util.mapPut(headers, "Accept", "*/*", "User-Agent", DEFAULT_USER_AGENT);
+			Throwable lastEx = null;
+			for (int i = 0, n = options.size(); i < n; i++) {
+				String opt = options.get(i);
+				if (opt.startsWith("http://") || opt.startsWith("https://")) {
+					url = opt;
+					continue;
+				}
+				if (opt.startsWith("--data-urlencode-")) {
+					charset = opt.substring(17);
+					opt = "--data-urlencode";
+				}
+				switch (Util.mapGet(optMap, opt, -1)) {
+					case 32: // --cert  <certificate[:password]> Client certificate file and password
+						cert = options.get(++i);
+						break;
+					case 1: // --compressed  Request compressed response (using deflate or gzip)
+						headers.put("Accept-Encoding", "gzip, deflate");
+						break;
+					case 2: // --connect-timeout  SECONDS  Maximum time allowed for connection
+						connectTimeout = Float.parseFloat(options.get(++i));
+						break;
+					case 3: // --cookie  STRING/FILE  Read cookies from STRING/FILE (H)
+						cookie = options.get(++i);
+						break;
+					case 4: // --cookie-jar  FILE  Write cookies to FILE after operation (H)
+						cookieJar = getIO(options.get(++i));
+						break;
+					case 5: // --data  DATA	 HTTP POST data (H)
+						String data = options.get(++i);
+						if (data.startsWith("@")) data = Util.b2s(readInput(getIO(data.substring(1))), null, null).replaceAll("[\r\n]+", "");
+						mergeData = dataSb.length() > 0;
+						dataSb.append(mergeData ? "&" : "").append(data);
+						break;
+					case 51: // --data-raw  DATA	 not handle "@"
+						mergeData = dataSb.length() > 0;
+						dataSb.append(mergeData ? "&" : "").append(options.get(++i));
+						break;
+					case 52: // --data-binary  DATA	 not stripping CR/LF
+						data = options.get(++i);
+						if (data.startsWith("@") && dataSb.length() == 0 && dataIO == null) { // raw body, sent as is
+							dataIO = getIO(data.substring(1));
+							break;
+						}
+						if (data.startsWith("@")) data = Util.b2s(readInput(getIO(data.substring(1))), null, null);
+						mergeData = dataSb.length() > 0;
+						dataSb.append(mergeData ? "&" : "").append(data);
+						break;
+					case 53: // --data-urlencode
+						mergeData = dataSb.length() > 0;
+						data = options.get(++i);
+						int idx, atIdx;
+						switch (idx = data.indexOf("=")) {
+							case -1: // no '='
+								if ((atIdx = data.indexOf("@")) >= 0) { // [name]@filename
+									String prefix = atIdx > 0 ? data.substring(0, atIdx) + "=" : "";
+									try {
+										data = prefix + URLEncoder.encode(Util.b2s(readInput(getIO(data.substring(atIdx + 1))), null, ""), charset);
+									} catch (Exception e) {
+										lastEx = e;
+									}
+									break;
+								} // else fall through
+							case 0: // =content
+								try {
+									data = URLEncoder.encode(data.substring(idx + 1), charset);
+								} catch (Exception e) {
+									lastEx = e;
+								}
+								break;
+							default: // name=content
+								Map<String, String> m = Util.split(data, "&", "=", new LinkedHashMap<String, String>());
+								for (Map.Entry<String, String> en: m.entrySet()) {
+									try { en.setValue(URLEncoder.encode(en.getValue(), "UTF-8")); } catch (Exception ignored) { }
+								}
+								data = Util.join(m, "&", "=");
+						}
+						dataSb.append(mergeData ? "&" : "").append(data);
+						break;
+					case 6: // --dump-header  FILE  Write the headers to FILE
+						dumpHeader = getIO(options.get(++i));
+						break;
+					case 7: // --form  CONTENT  Specify HTTP multipart POST data (H)
+						data = options.get(++i);
+						idx = data.indexOf('=');
+						form.put(data.substring(0, idx), new Util.Ref<String>(1, data.substring(idx + 1)));
+						break;
+					case 71: // --form-string  STRING  Specify HTTP multipart POST data (H)
+						for (String[] pair: Util.split(options.get(++i), "&", "=")) {
+							form.put(pair[0], new Util.Ref<String>(pair[1]));
+						}
+						break;
+					case 8: // --get  Send the -d data with a HTTP GET (H)
+						method = "GET";
+						break;
+					case 10: // --header  LINE   Pass custom header LINE to server (H)
+						putHeader(headers, options.get(++i));
+						break;
+					case 11: // --head  Show document info only
+						method = "HEAD";
+						break;
+//			case 12: // --ignore-content-length  Ignore the HTTP Content-Length header
+//				ignoreContentLength = true;
+//				break;
+					case 13: // --location  Follow redirects (H)
+						location = true;
+						break;
+					case 14: // --max-time  SECONDS  Maximum time allowed for the transfer
+						maxTime = Float.parseFloat(options.get(++i));
+						break;
+					case 15: // --no-keepalive  Disable keepalive use on the connection
+						noKeepAlive = true;
+						break;
+					case 16: // --output  FILE   Write to FILE instead of stdout
+						output = getIO(options.get(++i));
+						break;
+					case 17: // --proxy  [PROTOCOL://]HOST[:PORT]  Use proxy on given port
+						String[] pp = options.get(++i).split(":");
+						InetSocketAddress addr = InetSocketAddress.createUnresolved(pp[0], pp.length > 1 ? Integer.parseInt(pp[1]) : 1080); // resolved per request
+						proxy = new Proxy(Proxy.Type.HTTP, addr);
+						break;
+					case 18: // --proxy-user  USER[:PASSWORD]  Proxy user and password
+						final String proxyAuth = options.get(++i);
+						headers.put("Proxy-Authorization", basicAuth(proxyAuth));
+						Authenticator.setDefault(new Authenticator() {
+							@Override
+							protected PasswordAuthentication getPasswordAuthentication() {
+								String[] up = proxyAuth.split(":");
+								return new PasswordAuthentication(up[0], (up.length > 1 ? up[1] : "").toCharArray());
+							}
+						});
+						break;
+					case 19: // --referer  Referer URL (H)
+						headers.put("Referer", options.get(++i));
+						break;
+					case 20: // --retry  NUM   Retry request NUM times if transient problems occur
+						retry = Integer.parseInt(options.get(++i));
+						break;
+					case 21: // --retry-delay  SECONDS  Wait SECONDS between retries
+						retryDelay = Float.parseFloat(options.get(++i));
+						break;
+					case 22: // --retry-max-time  SECONDS  Retry only within this period
+						retryMaxTime = Float.parseFloat(options.get(++i));
+						break;
+					case 38: // --retry-all-errors  Retry all errors
+						retryAllErrors = true;
+						break;
+					case 23: // --silent  Silent mode (don't output anything)
+						silent = true;
+						break;
+					case 24: // --stderr  FILE   Where to redirect stderr (use "-" for stdout)
+						stderr = getIO(options.get(++i));
+						break;
+					case 25: // --url  URL	   URL to work with
+						url = options.get(++i);
+						break;
+					case 26: // --user-agent  STRING  Send User-Agent STRING to server (H)
+						headers.put("User-Agent", options.get(++i));
+						break;
+					case 27: // --request  COMMAND  Specify request command to use
+						method = options.get(++i);
+						break;
+					case 28: // -u, --user USER[:PASSWORD]  Server user and password
+						headers.put("Authorization", basicAuth(options.get(++i)));
+						break;
+					case 29: // --x-max-download  BYTES Maximum bytes allowed for the download
+						maxDownload = Integer.parseInt(options.get(++i));
+						break;
+					case 30: // --x-tags  DATA extra key-value pairs, storage only
+						Util.split(options.get(++i), "&", "=", tags);
+						break;
+					case 31: //
+						insecure = true;
+						break;
+					case 33: //
+						verbose = true;
+						break;
+					case 34: // --cacert file_name to specify the truststore file, "system" for system truststore
+						cacert = options.get(++i);
+						break;
+					case 35: // --x-stream  Pipe response data to the output in chunks
+						stream = true;
+						break;
+					case 36: // --http2  Use HTTP 2
+						http2 = true;
+						break;
+					case 37: // --http1.1  Use HTTP 1.1
+						http2 = false;
+						break;
+					case 39: // --x-hedge-after  MS  Send a hedged request if no response in MS milliseconds
+						hedgeAfter = Long.parseLong(options.get(++i));
+						break;
+					case 40: // --limit-rate  SPEED  Limit transfer speed to SPEED bytes per second
+						limitRate = Util.parseSize(options.get(++i));
+						break;
+					case 41: // --speed-limit  SPEED  Stop transfers slower than SPEED bytes per second
+						speedLimit = Long.parseLong(options.get(++i));
+						break;
+					case 42: // --speed-time  SECONDS  Trigger 'speed-limit' abort after SECONDS
+						speedTime = Integer.parseInt(options.get(++i));
+						break;
+					case 43: // --write-out  FORMAT  Use output FORMAT after completion
+						writeOut = options.get(++i);
+						break;
+					case 44: // --resolve  HOST:PORT:ADDR[,ADDR]...  Resolve the host+port to the addresses
+						parseResolve(options.get(++i), resolve);
+						break;
+
+					default: lastEx = new IllegalArgumentException("option " + opt + ": is unknown");
+				}
+				if (lastEx != null) break;
+			}
+			if (dataIO != null && (dataSb.length() > 0 || "GET".equals(method))) { // merged with other data, or appended to the url
+				mergeData = dataSb.length() > 0;
+				dataSb.insert(0, Util.b2s(readInput(dataIO), null, null) + (mergeData ? "&" : ""));
+				dataIO = null;
+			}
+			if (lastEx != null) { // do nothing
+			} else if (url == null) {
+				lastEx = new IllegalArgumentException("no URL specified!");
+			} else if (dataIO != null && (form.size() > 0 || "HEAD".equals(method))
+					|| dataSb.length() > 0 && form.size() > 0
+					|| dataSb.length() > 0 && "HEAD".equals(method)
+					|| form.size() > 0 && "HEAD".equals(method)) {
+				lastEx = new IllegalArgumentException("Warning: You can only select one HTTP request!");
+			}
+			String dataStr = "";
+			if (form.size() > 0) {
+				if (method == null) method = "POST";
+			} else if (dataIO != null) {
+				if (method == null) method = "POST";
+			} else if (dataSb.length() > 0) {
+				dataStr = !mergeData ? dataSb.toString()
+						: Util.join(Util.split(dataSb.toString(), "&", "=", new LinkedHashMap<String, String>()), "&", "=");
+				if (method == null) method = "POST";
+			}
+			if (method == null) method = "GET";
+			if (speedTime > 0 && speedLimit <= 0) speedLimit = 1; // same as curl
+			if (speedTime <= 0) speedTime = 30;
+			if (noKeepAlive) headers.put("Connection", "close"); // HTTP/1.1 keeps alive by default
+			if (url != null && dataStr.length() > 0 && "GET".equals(method)) url += (url.contains("?") ? "&" : "?") + dataStr;
+			this.tags = Collections.unmodifiableMap(tags);
+			this.headers = Collections.unmodifiableMap(headers);
+			this.form = Collections.unmodifiableMap(form);
+			this.resolve = Collections.unmodifiableMap(resolve);
+			this.proxy = proxy;
+			this.url = url;
+			this.method = method;
+			this.dataStr = dataStr;
+			this.cookie = cookie;
+			this.cert = cert;
+			this.cacert = cacert;
+			this.writeOut = writeOut;
+			this.output = output;
+			this.stderr = stderr;
+			this.cookieJar = cookieJar;
+			this.dumpHeader = dumpHeader;
+			this.dataIO = dataIO;
+			this.connectTimeout = connectTimeout;
+			this.maxTime = maxTime;
+			this.retryDelay = retryDelay;
+			this.retryMaxTime = retryMaxTime;
+			this.retry = retry;
+			this.retryPolicy = retryPolicy != null ? retryPolicy : new BackoffRetryPolicy(retry, (long) (retryDelay * 1000d), retryAllErrors);
+			this.cookieSession = cookieSession;
+			this.maxDownload = maxDownload;
+			this.hedgeAfter = hedgeAfter;
+			this.limitRate = limitRate;
+			this.speedLimit = speedLimit;
+			this.speedTime = speedTime;
+			this.location = location;
+			this.silent = silent;
+			this.insecure = insecure;
+			this.stream = stream;
+			this.http2 = http2;
+			this.error = lastEx;
+		}
+
+		private Plan(Plan base, String url, Map<String, String> headers) {
+			iomap = base.iomap;
+			tags = base.tags;
+			this.headers = headers;
+			form = base.form;
+			resolve = base.resolve;
+			proxy = base.proxy;
+			this.url = base.dataStr.length() > 0 && "GET".equals(base.method) ? url + (url.contains("?") ? "&" : "?") + base.dataStr : url;
+			method = base.method;
+			dataStr = base.dataStr;
+			cookie = base.cookie;
+			cert = base.cert;
+			cacert = base.cacert;
+			writeOut = base.writeOut;
+			output = base.output;
+			stderr = base.stderr;
+			cookieJar = base.cookieJar;
+			dumpHeader = base.dumpHeader;
+			dataIO = base.dataIO;
+			connectTimeout = base.connectTimeout;
+			maxTime = base.maxTime;
+			retryDelay = base.retryDelay;
+			retryMaxTime = base.retryMaxTime;
+			retry = base.retry;
+			retryPolicy = base.retryPolicy;
+			cookieSession = base.cookieSession;
+			maxDownload = base.maxDownload;
+			hedgeAfter = base.hedgeAfter;
+			limitRate = base.limitRate;
+			speedLimit = base.speedLimit;
+			speedTime = base.speedTime;
+			location = base.location;
+			silent = base.silent;
+			insecure = base.insecure;
+			stream = base.stream;
+			http2 = base.http2;
+			error = base.error;
+		}
+
+		/**
+		 * 以新的URL及附加的请求头创建新的请求计划，其它参数保持不变
+		 * Create a new plan with the given URL and extra headers, all other options are kept
+		 * @param url 新的URL，如为null则保持不变
+		 * @param headerLines 附加的请求头，语法同{@link CUrl#header(String)}
+		 */
+		public Plan bind(String url, String... headerLines) {
+			Map<String, String> headers = this.headers;
+			if (headerLines.length > 0) {
+				headers = new LinkedHashMap<String, String>(headers);
+				for (String line: headerLines) putHeader(headers, line);
+				headers = Collections.unmodifiableMap(headers);
+			}
+			if (url == null) {
+				if (headers == this.headers) return this;
+				url = this.url;
+				if (dataStr.length() > 0 && "GET".equals(method)) url = url.substring(0, url.length() - dataStr.length() - 1);
+			}
+			return new Plan(this, url, headers);
+		}
+
+		public String getUrl() { return url; }
+		public String getMethod() { return method; }
+		public Map<String, String> getHeaders() { return headers; }
+
+		/** 根据key获取对应IO，如果iomap中没有，则key作为文件路径创建一个FileIO  */
+		IO getIO(String key) {
+			IO io;
+			if (key == null || key.isEmpty()) return null;
+			if ("-".equals(key)) return STDOUT;
+			return (io = iomap.get(key)) == null ? new FileIO(key) : io;
+		}
+
+		/** Replace the stdout placeholder with the stdout of current execution */
+		IO io(IO io, MemIO stdout) {
+			return io == STDOUT ? stdout : io;
+		}
+	}
+
 	public interface Resolver<T> {
 		T resolve(int httpCode, byte[] responseBody) throws Throwable;
 	}
 
+	/**
+	 * Resolve the response from the live connection without buffering it in memory.
+	 * The stream is decompressed and limited by --x-max-download, it's closed by CUrl after resolve returns.
+	 */
+	public interface StreamResolver<T> {
+		T resolve(int httpCode, InputStream responseBody) throws Throwable;
+	}
+
 	public static class ToStringResolver implements Resolver<String> {
 		final private String charset;
 		public ToStringResolver(String charset) { this.charset = charset; }
@@ -1272,162 +2188,2152 @@ public final class CUrl {
 			return os;
 		}
 
-		public void setAppend(boolean append) {
-			this.append = append;
+		public void setAppend(boolean append) {
+			this.append = append;
+		}
+
+		public void close() {
+			try { if (is != null) is.close(); } catch (Exception ignored) {}
+			try { if (os != null) os.close(); } catch (Exception ignored) {}
+		}
+
+		public String toString() {
+			return "FileIO<" + f + ">";
+		}
+	}
+
+	public static final class MemIO extends ByteArrayOutputStream implements IO {
+		public MemIO() { super(0); }
+		public InputStream getInputStream() { return new ByteArrayInputStream(buf, 0, count); }
+		public OutputStream getOutputStream() { return this; }
+		public void setAppend(boolean append) { if (!append) this.reset(); }
+		public void close() {} // not needed
+		public String toString() { return "MemIO<" + this.hashCode() + ">"; }
+		/**
+		 * This is useful when the MemIO was used as the target of --dump-header
+		 * @return
+		 */
+		public Map<String, String> parseDumpedHeader() {
+			Map<String, String> result = new LinkedHashMap<String, String>();
+			String s = Util.b2s(this.toByteArray(), null, null);
+			for (String l: s.split("[\r\n]+")) {
+				if (l.trim().length() == 0) continue;
+				String[] kv = l.split(":", 2);
+				result.put(kv[0], kv.length > 1 ? kv[1].trim() : "");
+			}
+			return result;
+		}
+
+		public List<HttpCookie> parseCookieJar() {
+			return parseCookies(Util.b2s(this.toByteArray(), null, null));
+		}
+
+	}
+
+	public static class CookieIO implements IO, java.net.CookieStore {
+
+		public InputStream getInputStream() { throw new RuntimeException(); }
+		public OutputStream getOutputStream() { throw new RuntimeException(); }
+		public void setAppend(boolean append) {}
+		public void close() {}
+
+		protected final Map<String, List<HttpCookie>> cookiesMap;
+
+		public CookieIO() {
+			cookiesMap = new HashMap<String, List<HttpCookie>>();
+		}
+
+		protected Map<String, List<HttpCookie>> getCookiesMap() {
+			return cookiesMap;
+		}
+
+		public void add(String uri, String key, String value) {
+			try {
+				this.add(new URI(uri), new HttpCookie(key, value));
+			} catch (URISyntaxException e) {
+				throw new IllegalArgumentException(e);
+			}
+		}
+
+		@Override
+		public void add(URI uri, HttpCookie cookie) {
+			normalize(uri, cookie);
+			Map<String, List<HttpCookie>> map = Util.mapListAdd(getCookiesMap(), ArrayList.class, cookie.getDomain());
+			List<HttpCookie> cc = map.get(cookie.getDomain());
+			cc.remove(cookie);
+			if (cookie.getMaxAge() != 0) cc.add(cookie);
+		}
+
+		@Override
+		public List<HttpCookie> get(URI uri) {
+			List<HttpCookie> result = getCookies();
+			String host = uri.getHost();
+			for (ListIterator<HttpCookie> it = result.listIterator(); it.hasNext();) {
+				String domain = it.next().getDomain();
+				if (!domainMatches(domain, host)) it.remove();
+			}
+			return result;
+		}
+
+		@Override
+		public List<HttpCookie> getCookies() {
+			List<HttpCookie> result = new ArrayList<HttpCookie>();
+			for (List<HttpCookie> cc: getCookiesMap().values()) {
+				for (ListIterator<HttpCookie> it = cc.listIterator(); it.hasNext();)
+					if (it.next().hasExpired()) it.remove();
+				result.addAll(cc);
+			}
+			return result;
+		}
+
+		@Override
+		public List<URI> getURIs() {
+			Set<URI> result = new HashSet<URI>();
+			for (HttpCookie cookie: getCookies()) {
+				String scheme = cookie.getSecure() ? "https" : "http";
+				String domain = cookie.getDomain();
+				if (domain.startsWith(".")) domain = domain.substring(1);
+				try {
+					result.add(new URI(scheme, domain, cookie.getPath(), null));
+				} catch (URISyntaxException ignored) {}
+			}
+			return new ArrayList<URI>(result);
+		}
+
+		@Override
+		public boolean remove(URI uri, HttpCookie cookie) {
+			normalize(uri, cookie);
+			List<HttpCookie> cc = getCookiesMap().get(cookie.getDomain());
+			return cc != null && cc.remove(cookie);
+		}
+
+		@Override
+		public boolean removeAll() {
+			getCookiesMap().clear();
+			return true;
+		}
+
+		private static void normalize(URI uri, HttpCookie cookie) {
+			if (cookie.getDomain() == null && uri != null) cookie.setDomain(uri.getHost());
+			if (cookie.getPath() == null && uri != null) cookie.setPath(uri.getPath());
+			if (Util.empty(cookie.getDomain())) throw new IllegalArgumentException("illegal cookie domain: " + cookie.getDomain());
+			if (Util.empty(cookie.getPath())) cookie.setPath("/");
+			cookie.setVersion(0);
+		}
+
+		/** Check a string domain-matches a given domain string or not. Refer to section 5.1.3 RFC6265 */
+		private static boolean domainMatches(String domain, String host) {
+			if (domain == null || host == null) return false;
+			if (domain.startsWith(".")) { // it's a suffix
+				return host.toLowerCase().endsWith(domain.toLowerCase());
+			} else {
+				return host.equalsIgnoreCase(domain);
+			}
+		}
+
+	}
+
+	/**
+	 * 按域名索引的Cookie存储。域名按标签倒序存入字典树（com → example → www），查找时只访问请求主机路径上的节点，
+	 * 因此开销与匹配的Cookie数成正比，而非全部Cookie数；过期的Cookie记录在按过期时间排序的堆中，在访问时惰性清除。
+	 * 域名匹配规则与{@link CookieIO}相同，另外按RFC6265匹配路径。
+	 * Cookie store indexed by the domain labels in reverse order (com → example → www). A lookup only visits the nodes on the path
+	 * of the request host, so the cost scales with the matching cookies instead of all cookies. Expired cookies are tracked by a heap
+	 * ordered by expiry time and purged lazily. Domains are matched the same way as {@link CookieIO}, paths are matched per RFC6265.
+	 */
+	public static class IndexedCookieIO extends CookieIO {
+
+		/** 字典树节点 / Node of the trie */
+		private static final class Node {
+			final Node parent;
+			final String label;
+			Map<String, Node> children;
+			List<HttpCookie> hostOnly; // domain "example.com", matches the host itself
+			List<HttpCookie> suffix; // domain ".example.com", matches the sub-domains
+
+			Node(Node parent, String label) {
+				this.parent = parent;
+				this.label = label;
+			}
+
+			List<HttpCookie> list(boolean dotted, boolean create) {
+				if (dotted && suffix == null && create) suffix = new ArrayList<HttpCookie>(2);
+				if (!dotted && hostOnly == null && create) hostOnly = new ArrayList<HttpCookie>(2);
+				return dotted ? suffix : hostOnly;
+			}
+
+			boolean isEmpty() {
+				return (children == null || children.isEmpty()) && (hostOnly == null || hostOnly.isEmpty()) && (suffix == null || suffix.isEmpty());
+			}
+		}
+
+		private static final class Expiry implements Comparable<Expiry> {
+			final long at;
+			final HttpCookie cookie;
+			final Node node;
+
+			Expiry(long at, HttpCookie cookie, Node node) {
+				this.at = at;
+				this.cookie = cookie;
+				this.node = node;
+			}
+
+			public int compareTo(Expiry o) {
+				return at < o.at ? -1 : at > o.at ? 1 : 0;
+			}
+		}
+
+		/** 一组Cookie的索引 / Index of a set of cookies */
+		static final class Index {
+			final Node root = new Node(null, "");
+			final PriorityQueue<Expiry> expiries = new PriorityQueue<Expiry>();
+			final LinkedHashMap<HttpCookie, Node> order; // in the order of setting, for eviction
+			int size;
+
+			Index(boolean ordered) {
+				order = ordered ? new LinkedHashMap<HttpCookie, Node>() : null;
+			}
+		}
+
+		private final Index index;
+
+		public IndexedCookieIO() {
+			this(new Index(false));
+		}
+
+		IndexedCookieIO(Index index) {
+			this.index = index;
+		}
+
+		/** @return 当前使用的索引，子类可按线程等划分 / the index in use, subclasses may partition it, e.g. per thread */
+		Index index() {
+			return index;
+		}
+
+		@Override
+		protected Map<String, List<HttpCookie>> getCookiesMap() { // a snapshot, for compatibility only
+			Map<String, List<HttpCookie>> map = new HashMap<String, List<HttpCookie>>();
+			for (HttpCookie cookie: getCookies()) Util.mapListAdd(map, cookie.getDomain(), cookie);
+			return map;
+		}
+
+		@Override
+		public void add(URI uri, HttpCookie cookie) {
+			CookieIO.normalize(uri, cookie);
+			Index idx = index();
+			purge(idx);
+			boolean dotted = cookie.getDomain().startsWith(".");
+			Node node = node(idx, cookie.getDomain(), true);
+			List<HttpCookie> cc = node.list(dotted, true);
+			if (cc.remove(cookie)) idx.size--;
+			if (idx.order != null) idx.order.remove(cookie);
+			if (cookie.getMaxAge() == 0 || cookie.hasExpired()) {
+				prune(node);
+				return;
+			}
+			cc.add(cookie);
+			idx.size++;
+			if (idx.order != null) idx.order.put(cookie, node);
+			// an upper bound of the real expiry, as the creation time of HttpCookie is not accessible
+			if (cookie.getMaxAge() > 0) idx.expiries.add(new Expiry(System.currentTimeMillis() + cookie.getMaxAge() * 1000, cookie, node));
+		}
+
+		@Override
+		public List<HttpCookie> get(URI uri) {
+			List<HttpCookie> result = new ArrayList<HttpCookie>();
+			String host = uri.getHost();
+			if (host == null) return result;
+			Index idx = index();
+			purge(idx);
+			String path = Util.empty(uri.getPath()) ? "/" : uri.getPath();
+			String[] labels = host.toLowerCase().split("\\.", -1);
+			Node node = idx.root;
+			for (int i = labels.length - 1; i >= 0 && node != null; i--) {
+				node = node.children != null ? node.children.get(labels[i]) : null;
+				if (node == null) break;
+				if (i > 0) collect(node.suffix, path, result); // a proper sub-domain of the cookie domain
+				else collect(node.hostOnly, path, result);
+			}
+			return result;
+		}
+
+		@Override
+		public List<HttpCookie> getCookies() {
+			Index idx = index();
+			purge(idx);
+			List<HttpCookie> result = new ArrayList<HttpCookie>(idx.size);
+			collectAll(idx.root, result);
+			return result;
+		}
+
+		@Override
+		public boolean remove(URI uri, HttpCookie cookie) {
+			CookieIO.normalize(uri, cookie);
+			Index idx = index();
+			Node node = node(idx, cookie.getDomain(), false);
+			List<HttpCookie> cc = node != null ? node.list(cookie.getDomain().startsWith("."), false) : null;
+			if (cc == null || !cc.remove(cookie)) return false;
+			idx.size--;
+			if (idx.order != null) idx.order.remove(cookie);
+			prune(node);
+			return true;
+		}
+
+		@Override
+		public boolean removeAll() {
+			Index idx = index();
+			idx.root.children = null;
+			idx.expiries.clear();
+			if (idx.order != null) idx.order.clear();
+			idx.size = 0;
+			return true;
+		}
+
+		/** Remove the least recently set cookie of an ordered index */
+		static boolean evictEldest(Index idx) {
+			Iterator<Map.Entry<HttpCookie, Node>> it = idx.order.entrySet().iterator();
+			if (!it.hasNext()) return false;
+			Map.Entry<HttpCookie, Node> eldest = it.next();
+			it.remove();
+			HttpCookie cookie = eldest.getKey();
+			eldest.getValue().list(cookie.getDomain().startsWith("."), false).remove(cookie);
+			idx.size--;
+			prune(eldest.getValue());
+			return true; // its Expiry is dropped when due, as it's no longer in the list
+		}
+
+		/** Remove the cookies whose expiry time has passed */
+		private static void purge(Index idx) {
+			long now = System.currentTimeMillis();
+			for (Expiry e; (e = idx.expiries.peek()) != null && e.at <= now;) {
+				idx.expiries.poll();
+				List<HttpCookie> cc = e.node.list(e.cookie.getDomain().startsWith("."), false);
+				if (cc == null) continue;
+				for (Iterator<HttpCookie> it = cc.iterator(); it.hasNext();) {
+					if (it.next() == e.cookie) { // not replaced or removed since
+						it.remove();
+						idx.size--;
+						if (idx.order != null) idx.order.remove(e.cookie);
+						prune(e.node);
+						break;
+					}
+				}
+			}
+		}
+
+		private static Node node(Index idx, String domain, boolean create) {
+			String d = domain.toLowerCase();
+			if (d.startsWith(".")) d = d.substring(1);
+			String[] labels = d.split("\\.", -1);
+			Node node = idx.root;
+			for (int i = labels.length - 1; i >= 0; i--) {
+				Node child = node.children != null ? node.children.get(labels[i]) : null;
+				if (child == null) {
+					if (!create) return null;
+					if (node.children == null) node.children = new HashMap<String, Node>(4);
+					node.children.put(labels[i], child = new Node(node, labels[i]));
+				}
+				node = child;
+			}
+			return node;
+		}
+
+		/** Detach the empty nodes, so that the trie does not grow with the domains ever seen */
+		private static void prune(Node node) {
+			for (; node.parent != null && node.isEmpty(); node = node.parent) {
+				node.parent.children.remove(node.label);
+			}
+		}
+
+		private static void collect(List<HttpCookie> cc, String path, List<HttpCookie> result) {
+			if (cc == null) return;
+			for (HttpCookie c: cc) {
+				if (!c.hasExpired() && pathMatches(path, c.getPath())) result.add(c);
+			}
+		}
+
+		private static void collectAll(Node node, List<HttpCookie> result) {
+			if (node.hostOnly != null) result.addAll(node.hostOnly);
+			if (node.suffix != null) result.addAll(node.suffix);
+			if (node.children != null) for (Node child: node.children.values()) collectAll(child, result);
+		}
+
+		/** Refer to section 5.1.4 RFC6265 */
+		private static boolean pathMatches(String path, String cookiePath) {
+			if (cookiePath == null || path.equals(cookiePath) || "/".equals(cookiePath)) return true;
+			return path.startsWith(cookiePath) && (cookiePath.endsWith("/") || path.charAt(cookiePath.length()) == '/');
+		}
+
+	}
+
+	/**
+	 * 增量持久化的Cookie文件，可作为--cookie及--cookie-jar的IO使用。每次保存只追加有变化的Cookie（删除的Cookie以过期的记录表示），
+	 * 记录数远多于有效Cookie时在后台压缩重写；启动时通过内存映射读取，读取后立即释放映射。文件为Netscape格式，后出现的记录覆盖先前的，
+	 * 也可通过{@link #export(IO)}导出与curl兼容的文本。
+	 * Incrementally persisted cookie jar, usable as the IO of --cookie and --cookie-jar. Each save appends only the changed cookies
+	 * (a removed cookie is appended as an expired record), the file is compacted in background when the records greatly outnumber
+	 * the live cookies, and it's loaded through a memory-mapped buffer, which is released right after loading,
+	 * so the compaction can replace the file on Windows too. The file is in Netscape format, later records override earlier
+	 * ones, curl-compatible text can be exported with {@link #export(IO)}.
+	 */
+	public static final class CookieJournal implements IO {
+		private static final String TOMBSTONE_EXPIRE = "1"; // 1970-01-01T00:00:01Z, never 0, which means a session cookie
+
+		private final File file;
+		private final Map<String, HttpCookie> live = new LinkedHashMap<String, HttpCookie>();
+		private final Map<String, String> lines = new HashMap<String, String>();
+		private final Object compactLock = new Object();
+		private final AtomicBoolean compacting = new AtomicBoolean();
+		private volatile int compactThreshold = 1024;
+		private FileChannel channel;
+		private List<String> appendedWhileCompacting;
+		private long records, appended, compactions;
+
+		public CookieJournal(String path) throws IOException {
+			this(new File(path));
+		}
+
+		public CookieJournal(File file) throws IOException {
+			this.file = file.getAbsoluteFile();
+			Util.mkdirs(this.file.getParentFile());
+			load();
+			channel = new FileOutputStream(this.file, true).getChannel();
+		}
+
+		/** 记录数超过此值且超过有效Cookie数的两倍时压缩，默认1024 / Compact when the records exceed this and twice the live cookies, 1024 by default */
+		public CookieJournal compactThreshold(int records) {
+			compactThreshold = records;
+			return this;
+		}
+
+		private void load() throws IOException {
+			if (!file.isFile() || file.length() == 0) return;
+			CharBuffer text;
+			FileChannel ch = new RandomAccessFile(file, "r").getChannel();
+			try {
+				MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+				text = Charset.forName("UTF-8").decode(buf); // copied out, the mapping is not used afterwards
+				Util.unmap(buf);
+			} finally {
+				ch.close();
+			}
+			for (int start = 0, len = text.length(), end; start < len; start = end + 1) {
+				for (end = start; end < len && text.charAt(end) != '\n'; end++);
+				String line = text.subSequence(start, end > start && text.charAt(end - 1) == '\r' ? end - 1 : end).toString();
+				HttpCookie cookie = parseCookieLine(line);
+				if (cookie == null) continue;
+				records++;
+				String key = key(cookie);
+				if (cookie.hasExpired()) {
+					live.remove(key);
+					lines.remove(key);
+				} else {
+					live.put(key, cookie);
+					lines.put(key, line);
+				}
+			}
+		}
+
+		private static String key(HttpCookie cookie) {
+			return cookie.getDomain().toLowerCase() + '\t' + cookie.getPath() + '\t' + cookie.getName().toLowerCase();
+		}
+
+		/** @return 文件中的有效Cookie，供加载到Cookie存储 / the live cookies of the journal, to be loaded into a cookie store */
+		public synchronized List<HttpCookie> getCookies() {
+			List<HttpCookie> result = new ArrayList<HttpCookie>(live.size());
+			for (Iterator<HttpCookie> it = live.values().iterator(); it.hasNext();) {
+				HttpCookie cookie = it.next();
+				if (cookie.hasExpired()) continue; // dropped at the next compaction
+				result.add(cookie);
+			}
+			return result;
+		}
+
+		/**
+		 * 保存Cookie存储的当前状态，只追加新增、修改及删除的Cookie
+		 * Save the current state of a cookie store, only the added, changed and removed cookies are appended
+		 * @param cookies 存储中的全部Cookie / all cookies of the store
+		 */
+		public void record(Collection<HttpCookie> cookies) throws IOException {
+			StringBuilder sb = new StringBuilder();
+			boolean compact;
+			synchronized (this) {
+				Set<String> seen = new HashSet<String>();
+				for (HttpCookie cookie: cookies) {
+					if (cookie.getDomain() == null || cookie.getPath() == null) continue;
+					String key = key(cookie);
+					seen.add(key);
+					HttpCookie prev = live.get(key);
+					if (prev == cookie) continue; // the same instance, unchanged
+					String line = dumpCookie(cookie);
+					if (prev != null && sameExceptExpiry(lines.get(key), line)) continue; // expiry drifts with the current time
+					live.put(key, cookie);
+					lines.put(key, line);
+					sb.append(line);
+				}
+				for (Iterator<Map.Entry<String, HttpCookie>> it = live.entrySet().iterator(); it.hasNext();) {
+					Map.Entry<String, HttpCookie> en = it.next();
+					if (seen.contains(en.getKey())) continue;
+					String[] ll = dumpCookie(en.getValue()).split("\t", -1);
+					ll[4] = TOMBSTONE_EXPIRE;
+					sb.append(Util.join(ll, "\t", ""));
+					it.remove();
+					lines.remove(en.getKey());
+				}
+				if (sb.length() == 0) return;
+				String s = sb.toString();
+				channel.write(ByteBuffer.wrap(Util.s2b(s, null)));
+				int n = s.length() - s.replace("\n", "").length();
+				records += n;
+				appended += n;
+				if (appendedWhileCompacting != null) appendedWhileCompacting.add(s);
+				compact = records > Math.max(compactThreshold, 2L * live.size());
+			}
+			if (compact) compactInBackground();
+		}
+
+		/** Same cookie with an expiry no more than 1 second apart */
+		private static boolean sameExceptExpiry(String line1, String line2) {
+			if (line1 == null) return false;
+			String[] l1 = line1.split("\t", -1), l2 = line2.split("\t", -1);
+			if (l1.length != l2.length || l1.length < 7) return false;
+			for (int i = 0; i < l1.length; i++) {
+				if (i == 4) {
+					try {
+						if (Math.abs(Long.parseLong(l1[i]) - Long.parseLong(l2[i])) > 1) return false;
+					} catch (NumberFormatException e) {
+						return false;
+					}
+				} else if (!l1[i].equals(l2[i])) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private void compactInBackground() {
+			if (!compacting.compareAndSet(false, true)) return;
+			try {
+				getDefaultExecutor().execute(new Runnable() {
+					public void run() {
+						try {
+							compact();
+						} catch (IOException e) {
+							if (verbose) {
+								Util.logStderr("Compaction of %s failed: %s", file, e);
+							}
+						} finally {
+							compacting.set(false);
+						}
+					}
+				});
+			} catch (Throwable e) { // RejectedExecutionException
+				compacting.set(false);
+			}
+		}
+
+		/**
+		 * 重写文件，只保留有效的Cookie；保存可与之并发进行
+		 * Rewrite the file with the live cookies only, saving may go on concurrently
+		 */
+		public void compact() throws IOException {
+			synchronized (compactLock) {
+				StringBuilder sb = new StringBuilder();
+				int n = 0;
+				synchronized (this) {
+					for (Map.Entry<String, HttpCookie> en: live.entrySet()) {
+						if (en.getValue().hasExpired()) continue;
+						sb.append(lines.get(en.getKey()));
+						n++;
+					}
+					appendedWhileCompacting = new ArrayList<String>();
+				}
+				File tmp = new File(file.getPath() + ".tmp");
+				OutputStream os = new FileOutputStream(tmp);
+				try {
+					os.write(Util.s2b(sb.toString(), null));
+					synchronized (this) {
+						for (String s: appendedWhileCompacting) {
+							os.write(Util.s2b(s, null));
+							n += s.length() - s.replace("\n", "").length();
+						}
+						os.close();
+						channel.close();
+						try {
+							Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+						} finally {
+							channel = new FileOutputStream(file, true).getChannel();
+						}
+						for (Iterator<HttpCookie> it = live.values().iterator(); it.hasNext();) {
+							if (it.next().hasExpired()) it.remove();
+						}
+						lines.keySet().retainAll(live.keySet());
+						records = n;
+						compactions++;
+					}
+				} finally {
+					synchronized (this) { appendedWhileCompacting = null; }
+					try { os.close(); } catch (Exception ignored) {}
+					tmp.delete();
+				}
+			}
+		}
+
+		/** 导出curl兼容的Netscape格式文本 / Export curl-compatible text in Netscape format */
+		public void export(IO output) {
+			writeOutput(output, Util.s2b("# Netscape HTTP Cookie File\n" + dumpCookies(getCookies()), null), false);
+		}
+
+		public File getFile() { return file; }
+		/** @return 文件中的记录数 / records in the file */
+		public synchronized long getRecords() { return records; }
+		/** @return 追加的记录数 / records appended */
+		public synchronized long getAppended() { return appended; }
+		public synchronized long getCompactions() { return compactions; }
+
+		public InputStream getInputStream() {
+			return new ByteArrayInputStream(Util.s2b(dumpCookies(getCookies()), null));
+		}
+
+		public OutputStream getOutputStream() {
+			throw new UnsupportedOperationException("use record(cookies)");
+		}
+
+		public void setAppend(boolean append) {}
+
+		/** Does not close the file, the journal is kept for the next execution */
+		public void close() {}
+
+		/** 关闭文件 / Close the file */
+		public synchronized void shutdown() {
+			try { channel.close(); } catch (IOException ignored) {}
+		}
+
+		public String toString() {
+			return "CookieJournal<" + file + ">";
+		}
+	}
+
+	public static final class CookieStore extends IndexedCookieIO {
+
+		private final ThreadLocal<Index> indexes = new ThreadLocal<Index>() {
+			@Override protected Index initialValue() {
+				return new Index(false);
+			}
+		};
+
+		CookieStore() {
+			super(null); // per thread
+		}
+
+		@Override
+		Index index() {
+			return indexes.get();
+		}
+
+		/** @return 绑定到当前线程Cookie的视图，可在其他线程中使用 / a view of the cookies of current thread, usable in other threads */
+		IndexedCookieIO current() {
+			return new IndexedCookieIO(indexes.get());
+		}
+	}
+
+	/**
+	 * 可在多个线程及多个CUrl间共享的Cookie会话，通过{@link CUrl#cookieSession(CookieSession)}使用。Cookie按域名的末两级分条存储，
+	 * 各条独立加锁；总数超过容量时，从最大的条中淘汰最早设置的Cookie。与线程绑定的默认存储不同，会话的生命周期由使用者控制。
+	 * Cookie session which can be shared among threads and CUrl instances, see {@link CUrl#cookieSession(CookieSession)}.
+	 * Cookies are striped by the last two labels of their domain, each stripe has its own lock. When the total count exceeds
+	 * the capacity, the least recently set cookie of the largest stripe is evicted. Unlike the default thread-bound store,
+	 * the lifetime of a session is controlled by its owner.
+	 */
+	public static final class CookieSession extends CookieIO {
+		private final IndexedCookieIO[] stripes;
+		private final int capacity;
+		private final AtomicInteger size = new AtomicInteger();
+		private final AtomicLong evictions = new AtomicLong();
+
+		public CookieSession() {
+			this(10000, 16);
+		}
+
+		/**
+		 * @param capacity 最多保存的Cookie数 / max number of cookies
+		 * @param stripes 分条数，即最大并发度 / number of stripes, i.e. the max concurrency
+		 */
+		public CookieSession(int capacity, int stripes) {
+			if (capacity <= 0 || stripes <= 0) throw new IllegalArgumentException("capacity and stripes must be positive");
+			this.capacity = capacity;
+			this.stripes = new IndexedCookieIO[stripes];
+			for (int i = 0; i < stripes; i++) this.stripes[i] = new IndexedCookieIO(new IndexedCookieIO.Index(true));
+		}
+
+		/** @param labels 取域名的末几级 / number of trailing labels */
+		private IndexedCookieIO stripe(String domain, int labels) {
+			String d = domain.toLowerCase();
+			int idx = d.length();
+			for (int i = 0; i < labels && idx > 0; i++) idx = d.lastIndexOf('.', idx - 1);
+			d = d.substring(idx + 1);
+			return stripes[(d.hashCode() & 0x7FFFFFFF) % stripes.length];
+		}
+
+		@Override
+		protected Map<String, List<HttpCookie>> getCookiesMap() { // a snapshot, for compatibility only
+			Map<String, List<HttpCookie>> map = new HashMap<String, List<HttpCookie>>();
+			for (HttpCookie cookie: getCookies()) Util.mapListAdd(map, cookie.getDomain(), cookie);
+			return map;
+		}
+
+		@Override
+		public void add(URI uri, HttpCookie cookie) {
+			CookieIO.normalize(uri, cookie);
+			IndexedCookieIO stripe = stripe(cookie.getDomain(), 2);
+			synchronized (stripe) {
+				int before = stripe.index().size;
+				stripe.add(null, cookie);
+				size.addAndGet(stripe.index().size - before);
+			}
+			if (size.get() > capacity) evict();
+		}
+
+		@Override
+		public List<HttpCookie> get(URI uri) {
+			String host = uri.getHost();
+			if (host == null) return new ArrayList<HttpCookie>();
+			// cookies of a domain with 2+ labels are in the first stripe, those of a top-level domain are in the second one
+			IndexedCookieIO s1 = stripe(host, 2), s2 = stripe(host, 1);
+			List<HttpCookie> result = get(s1, uri);
+			if (s2 != s1) result.addAll(get(s2, uri));
+			return result;
+		}
+
+		private List<HttpCookie> get(IndexedCookieIO stripe, URI uri) {
+			synchronized (stripe) {
+				int before = stripe.index().size; // expired cookies are purged
+				List<HttpCookie> result = stripe.get(uri);
+				size.addAndGet(stripe.index().size - before);
+				return result;
+			}
+		}
+
+		@Override
+		public List<HttpCookie> getCookies() {
+			List<HttpCookie> result = new ArrayList<HttpCookie>();
+			for (IndexedCookieIO stripe: stripes) {
+				synchronized (stripe) {
+					int before = stripe.index().size;
+					result.addAll(stripe.getCookies());
+					size.addAndGet(stripe.index().size - before);
+				}
+			}
+			return result;
+		}
+
+		@Override
+		public boolean remove(URI uri, HttpCookie cookie) {
+			CookieIO.normalize(uri, cookie);
+			IndexedCookieIO stripe = stripe(cookie.getDomain(), 2);
+			synchronized (stripe) {
+				if (!stripe.remove(null, cookie)) return false;
+				size.decrementAndGet();
+				return true;
+			}
+		}
+
+		@Override
+		public boolean removeAll() {
+			for (IndexedCookieIO stripe: stripes) {
+				synchronized (stripe) {
+					size.addAndGet(-stripe.index().size);
+					stripe.removeAll();
+				}
+			}
+			return true;
+		}
+
+		/** Evict the least recently set cookies of the largest stripes until the capacity is met */
+		private void evict() {
+			while (size.get() > capacity) {
+				IndexedCookieIO largest = stripes[0];
+				for (IndexedCookieIO stripe: stripes) {
+					if (stripe.index().size > largest.index().size) largest = stripe; // racy read, good enough to pick one
+				}
+				synchronized (largest) {
+					if (!IndexedCookieIO.evictEldest(largest.index())) return;
+					size.decrementAndGet();
+					evictions.incrementAndGet();
+				}
+			}
+		}
+
+		/** @return 当前Cookie数 / current number of cookies */
+		public int size() { return size.get(); }
+		public int getCapacity() { return capacity; }
+		/** @return 因超出容量而淘汰的Cookie数 / cookies evicted for the capacity */
+		public long getEvictions() { return evictions.get(); }
+	}
+
+	/**
+	 * Bounded LRU cache of SSLContext and its SSLSocketFactory, keyed by client certificate, password, truststore and insecure flag.
+	 * A client certificate in FileIO is identified by its path and last-modified time, other IOs are identified by instance.
+	 */
+	public static final class SslContextCache {
+		private final Map<List<Object>, CachedContext> entries;
+		private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(), evictions = new AtomicLong();
+
+		public SslContextCache(final int capacity) {
+			entries = new LinkedHashMap<List<Object>, CachedContext>(16, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<List<Object>, CachedContext> eldest) {
+					if (size() <= capacity) return false;
+					evictions.incrementAndGet();
+					return true;
+				}
+			};
+		}
+
+		public SSLSocketFactory getSocketFactory(IO cert, String password, String trustStore, boolean insecure) throws Exception {
+			return get(cert, password, trustStore, insecure).factory;
+		}
+
+		public SSLContext getContext(IO cert, String password, String trustStore, boolean insecure) throws Exception {
+			return get(cert, password, trustStore, insecure).context;
+		}
+
+		CachedContext get(IO cert, String password, String trustStore, boolean insecure) throws Exception {
+			Object certKey = cert instanceof FileIO ? ((FileIO) cert).f.getPath() + "@" + ((FileIO) cert).f.lastModified() : cert;
+			List<Object> key = Arrays.asList(certKey, password, trustStore, insecure);
+			CachedContext entry;
+			synchronized (entries) { entry = entries.get(key); }
+			if (entry != null) {
+				hits.incrementAndGet();
+				return entry;
+			}
+			misses.incrementAndGet();
+			CachedContext created = new CachedContext(createSslContext(cert, password, trustStore, insecure)); // build outside the lock
+			synchronized (entries) {
+				if ((entry = entries.get(key)) == null) entries.put(key, entry = created);
+			}
+			return entry;
+		}
+
+		public long getHits() { return hits.get(); }
+		public long getMisses() { return misses.get(); }
+		public long getEvictions() { return evictions.get(); }
+		public int size() { synchronized (entries) { return entries.size(); } }
+		public void clear() { synchronized (entries) { entries.clear(); } }
+
+		public String toString() {
+			return "SslContextCache<size=" + size() + ",hits=" + hits + ",misses=" + misses + ",evictions=" + evictions + ">";
+		}
+
+		static final class CachedContext {
+			final SSLContext context;
+			final SSLSocketFactory factory;
+			CachedContext(SSLContext context) { this.context = context; this.factory = context.getSocketFactory(); }
+		}
+	}
+
+	/**
+	 * Registry of the truststores used by --cacert. Each truststore is loaded once and shared by all SSLContexts,
+	 * the file is reloaded only when its last-modified time changes, which is checked at most once per second.
+	 */
+	public static final class TrustStoreRegistry {
+		private static final long CHECK_INTERVAL = 1000L;
+		private final ConcurrentHashMap<String, X509TrustManager> managers = new ConcurrentHashMap<String, X509TrustManager>();
+		private final AtomicLong reloads = new AtomicLong();
+
+		/**
+		 * @param trustStore &lt;truststore[:password]&gt;, or "system" for the default truststore of JRE
+		 * @return a shared trust manager, the truststore is loaded lazily at the first handshake
+		 */
+		public X509TrustManager get(String trustStore) {
+			X509TrustManager tm = managers.get(trustStore);
+			if (tm == null) {
+				X509TrustManager created = new ReloadingTrustManager(trustStore);
+				tm = (tm = managers.putIfAbsent(trustStore, created)) != null ? tm : created;
+			}
+			return tm;
+		}
+
+		/** Number of times a truststore file was reloaded due to modification */
+		public long getReloads() { return reloads.get(); }
+		public int size() { return managers.size(); }
+		public void clear() { managers.clear(); }
+
+		public String toString() {
+			return "TrustStoreRegistry<size=" + size() + ",reloads=" + reloads + ">";
+		}
+
+		private final class ReloadingTrustManager implements X509TrustManager {
+			private final String trustStore;
+			private final File file;
+			private volatile X509TrustManager delegate;
+			private volatile long lastModified, lastChecked;
+
+			ReloadingTrustManager(String trustStore) {
+				this.trustStore = trustStore;
+				int idx = trustStore.lastIndexOf(':');
+				this.file = "system".equals(trustStore) ? null : new File(idx < 0 ? trustStore : trustStore.substring(0, idx));
+			}
+
+			private X509TrustManager current() throws CertificateException {
+				X509TrustManager tm = delegate;
+				long now = System.currentTimeMillis();
+				if (tm != null && (file == null || now - lastChecked < CHECK_INTERVAL)) return tm;
+				synchronized (this) {
+					if ((tm = delegate) != null && file != null && now - lastChecked >= CHECK_INTERVAL) {
+						lastChecked = now;
+						if (file.lastModified() != lastModified) tm = null;
+					}
+					if (tm == null) {
+						long modified = file != null ? file.lastModified() : 0;
+						try {
+							tm = loadTrustManager(trustStore);
+						} catch (KeyStoreException e) {
+							throw new CertificateException(e.getMessage(), e);
+						}
+						if (delegate != null) reloads.incrementAndGet();
+						delegate = tm;
+						lastModified = modified;
+						lastChecked = now;
+					}
+				}
+				return tm;
+			}
+
+			public void checkClientTrusted(X509Certificate[] certs, String authType) throws CertificateException {
+				current().checkClientTrusted(certs, authType);
+			}
+
+			public void checkServerTrusted(X509Certificate[] certs, String authType) throws CertificateException {
+				current().checkServerTrusted(certs, authType);
+			}
+
+			public X509Certificate[] getAcceptedIssuers() {
+				try { return current().getAcceptedIssuers(); } catch (CertificateException e) { return new X509Certificate[0]; }
+			}
+		}
+	}
+
+	/**
+	 * 传输层接口，负责发送单个HTTP请求并返回应答，重定向、重试、Cookie保存及输出处理由CUrl完成。
+	 * 默认实现基于HttpURLConnection，"--http2"使用基于java.net.http.HttpClient的实现。
+	 * Transport SPI which sends a single HTTP request and returns the response. Redirection, retrying, cookie-jar and
+	 * output handling are done by CUrl, so all the options keep their semantics regardless of the transport.
+	 * The default implementation is based on HttpURLConnection, "--http2" selects the one based on java.net.http.HttpClient.
+	 */
+	public interface Transport {
+		/**
+		 * 发送请求头及请求体 / Send the request headers and body
+		 * @throws Recoverable 如请求可以重试 / if the request could be retried
+		 */
+		Exchange open(Request request) throws Exception;
+	}
+
+	/**
+	 * 单次请求尝试的各阶段耗时，以System.nanoTime记录，均为自exec开始的累计时间，同curl的-w变量。每个重定向及每次重试各有一个Timing。
+	 * Timing of a single attempt, recorded with System.nanoTime. Like curl's -w variables, every time is counted from the start
+	 * of exec, and 0 if the phase was not reached (e.g. time_appconnect of plain HTTP). There is one Timing per redirect and retry.
+	 * Note that HttpURLConnection connects and performs the TLS handshake in one call, thus time_connect equals time_appconnect for HTTPS.
+	 */
+	public static final class Timing {
+		private final long origin, redirect;
+		private final URL url;
+		private final int hop, attempt;
+		private long start, namelookup, connect, appconnect, pretransfer, starttransfer, total;
+		private int httpCode = -1;
+		private long sizeDownload;
+
+		Timing(long origin, URL url, int hop, int attempt, long redirect) {
+			this.origin = origin;
+			this.url = url;
+			this.hop = hop;
+			this.attempt = attempt;
+			this.redirect = redirect;
+			start = System.nanoTime() - origin;
+		}
+
+		/** 以下阶段仅记录首次，对冲请求以先到者为准 / Only the first mark of a phase counts, e.g. for hedged requests */
+		synchronized void markNamelookup() { if (namelookup == 0) namelookup = System.nanoTime() - origin; }
+		/** 传输层在TCP连接建立后调用 / Called by the transport when the TCP connection is established */
+		public synchronized void markConnect() { if (connect == 0) connect = System.nanoTime() - origin; }
+		/** 传输层在TLS握手完成后调用 / Called by the transport when the TLS handshake is done */
+		public synchronized void markAppConnect() { if (appconnect == 0) appconnect = System.nanoTime() - origin; }
+		synchronized void markPretransfer() { if (pretransfer == 0) pretransfer = System.nanoTime() - origin; }
+		synchronized void markStarttransfer() { if (starttransfer == 0) starttransfer = System.nanoTime() - origin; }
+
+		synchronized void finish(int httpCode, long sizeDownload) {
+			if (total != 0) return;
+			total = System.nanoTime() - origin;
+			this.httpCode = httpCode;
+			this.sizeDownload = sizeDownload;
+		}
+
+		private static double seconds(long nanos) {
+			return nanos / 1e9;
+		}
+
+		public URL getUrl() { return url; }
+		/** @return 重定向序号，0为初始URL / index of the redirect, 0 for the initial URL */
+		public int getHop() { return hop; }
+		/** @return 重试序号，0为首次尝试 / index of the retry, 0 for the first attempt */
+		public int getAttempt() { return attempt; }
+		public synchronized int getHttpCode() { return httpCode; }
+		public synchronized double getTimeStart() { return seconds(start); }
+		public synchronized double getTimeNamelookup() { return seconds(namelookup); }
+		public synchronized double getTimeConnect() { return seconds(connect); }
+		public synchronized double getTimeAppconnect() { return seconds(appconnect); }
+		public synchronized double getTimePretransfer() { return seconds(pretransfer); }
+		public synchronized double getTimeStarttransfer() { return seconds(starttransfer); }
+		public double getTimeRedirect() { return seconds(redirect); }
+		public synchronized double getTimeTotal() { return seconds(total); }
+		public synchronized long getSizeDownload() { return sizeDownload; }
+		/** @return 平均下载速度，字节/秒 / average download speed in bytes per second */
+		public synchronized long getSpeedDownload() { return total > 0 ? (long) (sizeDownload / seconds(total)) : 0; }
+
+		/**
+		 * 按curl的-w格式输出，支持%{variable}、%%及\n、\r、\t
+		 * Format like curl's -w, supports %{variable}, %% and \n, \r, \t
+		 */
+		public String format(String writeOut) {
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0, n = writeOut.length(); i < n; i++) {
+				char c = writeOut.charAt(i);
+				int end;
+				if (c == '%' && i + 1 < n && writeOut.charAt(i + 1) == '%') {
+					sb.append('%');
+					i++;
+				} else if (c == '%' && i + 1 < n && writeOut.charAt(i + 1) == '{' && (end = writeOut.indexOf('}', i)) > 0) {
+					sb.append(get(writeOut.substring(i + 2, end)));
+					i = end;
+				} else if (c == '\\' && i + 1 < n && "nrt".indexOf(writeOut.charAt(i + 1)) >= 0) {
+					sb.append("\n\r\t".charAt("nrt".indexOf(writeOut.charAt(++i))));
+				} else {
+					sb.append(c);
+				}
+			}
+			return sb.toString();
+		}
+
+		/** @return 变量值，未知变量为空串 / value of the -w variable, empty for unknown variables */
+		public String get(String variable) {
+			switch (variable) {
+				case "time_namelookup": return String.format(Locale.US, "%.6f", getTimeNamelookup());
+				case "time_connect": return String.format(Locale.US, "%.6f", getTimeConnect());
+				case "time_appconnect": return String.format(Locale.US, "%.6f", getTimeAppconnect());
+				case "time_pretransfer": return String.format(Locale.US, "%.6f", getTimePretransfer());
+				case "time_starttransfer": return String.format(Locale.US, "%.6f", getTimeStarttransfer());
+				case "time_redirect": return String.format(Locale.US, "%.6f", getTimeRedirect());
+				case "time_total": return String.format(Locale.US, "%.6f", getTimeTotal());
+				case "size_download": return Long.toString(getSizeDownload());
+				case "speed_download": return Long.toString(getSpeedDownload());
+				case "http_code":
+				case "response_code": return String.format("%03d", Math.max(getHttpCode(), 0));
+				case "num_redirects": return Integer.toString(hop);
+				case "url_effective": return url.toString();
+				default: return "";
+			}
+		}
+
+		public String toString() {
+			return "Timing<" + url + ",hop=" + hop + ",attempt=" + attempt + ",total=" + get("time_total") + ">";
+		}
+	}
+
+	/** 发给传输层的单个请求 / A single request passed to the transport */
+	public static final class Request {
+		final URL url;
+		final String method;
+		final Map<String, String> headers;
+		final Body body;
+		final Proxy proxy;
+		final int connectTimeout, readTimeout;
+		final SSLContext sslContext;
+		final SSLSocketFactory sslSocketFactory;
+		final boolean insecure;
+		final InetAddress[] addresses;
+		final CookieHandler cookieHandler;
+		final Timing timing;
+		private AtomicReference<List<Runnable>> aborts = new AtomicReference<List<Runnable>>(new ArrayList<Runnable>(2)); // null once aborted, shared with the copies
+
+		Request(URL url, String method, Map<String, String> headers, Body body, Proxy proxy, int connectTimeout, int readTimeout,
+				SSLContext sslContext, SSLSocketFactory sslSocketFactory, boolean insecure, InetAddress[] addresses,
+				CookieHandler cookieHandler, Timing timing) {
+			this.url = url;
+			this.method = method;
+			this.headers = Collections.unmodifiableMap(headers);
+			this.body = body;
+			this.proxy = proxy;
+			this.connectTimeout = connectTimeout;
+			this.readTimeout = readTimeout;
+			this.sslContext = sslContext;
+			this.sslSocketFactory = sslSocketFactory;
+			this.insecure = insecure;
+			this.addresses = addresses;
+			this.cookieHandler = cookieHandler;
+			this.timing = timing;
+		}
+
+		/** A copy with another cookie handler */
+		Request withCookieHandler(CookieHandler cookieHandler) {
+			Request copy = new Request(url, method, headers, body, proxy, connectTimeout, readTimeout, sslContext, sslSocketFactory, insecure,
+					addresses, cookieHandler, timing);
+			copy.aborts = aborts;
+			return copy;
+		}
+
+		/**
+		 * 注册中止动作（如关闭Socket），在--max-time到期时执行，以中止阻塞的连接、发送或等待。如已中止则立即执行
+		 * Register an action which unblocks the transport, e.g. closes the socket. It's run when --max-time expires,
+		 * which aborts a slow upload or a response that never comes. It's run at once if the request is already aborted.
+		 */
+		public void onAbort(Runnable action) {
+			synchronized (aborts) {
+				List<Runnable> ll = aborts.get();
+				if (ll != null) {
+					ll.add(action);
+					return;
+				}
+			}
+			action.run();
+		}
+
+		void abort() {
+			List<Runnable> ll;
+			synchronized (aborts) {
+				ll = aborts.getAndSet(null);
+			}
+			if (ll != null) for (Runnable action: ll) {
+				try { action.run(); } catch (Exception ignored) {}
+			}
+		}
+
+		public URL getUrl() { return url; }
+		public String getMethod() { return method; }
+		public Map<String, String> getHeaders() { return headers; }
+		/** @return 请求体，如无则为null / the request body, or null if none */
+		public Body getBody() { return body; }
+		public Proxy getProxy() { return proxy; }
+		/** @return 连接超时毫秒数，0为不限 / connect timeout in milliseconds, 0 for infinite */
+		public int getConnectTimeout() { return connectTimeout; }
+		/** @return 读取超时毫秒数，0为不限 / read timeout in milliseconds, 0 for infinite */
+		public int getReadTimeout() { return readTimeout; }
+		/** @return 缓存的SSLContext，非HTTPS请求为null / the cached SSLContext, null for plain HTTP */
+		public SSLContext getSslContext() { return sslContext; }
+		/** @return 缓存的SSLSocketFactory，同一实例才能复用TLS会话 / the cached factory, same instance is required to resume TLS sessions */
+		public SSLSocketFactory getSslSocketFactory() { return sslSocketFactory; }
+		public boolean isInsecure() { return insecure; }
+		/**
+		 * @return 第一跳（代理或目标主机）的地址，来自--resolve或DNS缓存，传输层可直接连接 /
+		 *  addresses of the first hop (the proxy if any, otherwise the host), from --resolve or the DNS cache
+		 */
+		public InetAddress[] getAddresses() { return addresses; }
+		/**
+		 * @return 本请求的Cookie处理器，传输层应显式地用它读写Cookie，JVM默认的CookieHandler不再被设置 /
+		 *  cookie handler of the request, the transport applies it explicitly. CUrl no longer installs the JVM-wide default
+		 */
+		public CookieHandler getCookieHandler() { return cookieHandler; }
+		/** @return 本次尝试的计时，传输层可记录连接及TLS握手时间 / timing of the attempt, the transport may mark connect and TLS handshake */
+		public Timing getTiming() { return timing; }
+	}
+
+	/**
+	 * 传输层返回的应答，方法语义同HttpURLConnection
+	 * Response returned by the transport, the methods have the same semantics as those of HttpURLConnection
+	 */
+	public interface Exchange {
+		int getResponseCode() throws IOException;
+		/** @return 第一个名字为null的值应为状态行 / the first header with null name is expected to be the status line */
+		Headers getResponseHeaders();
+		String getHeaderField(String name);
+		/** @throws IOException 应答码&gt;=400时 / if the response code is &gt;= 400 */
+		InputStream getInputStream() throws IOException;
+		/** @return 应答码&gt;=400时的应答数据，否则为null / the response data if the response code is &gt;= 400, otherwise null */
+		InputStream getErrorStream();
+		/** 中止请求，可由其它线程调用 / Abort the exchange, can be called from other threads */
+		void cancel();
+		/**
+		 * 请求结束时调用，无论应答数据是否已读取，连接池可借此回收连接
+		 * Called when the attempt is over, whether the response data was read or not, so a pooled connection can be released
+		 */
+		default void release() {}
+	}
+
+	/**
+	 * 应答头，按接收顺序保存，支持大小写无关的按名查找。作为List&lt;String[]&gt;访问时每个元素为{名称, 值}，状态行的名称为null。
+	 * Response headers in the order received, with case-insensitive lookup by name. Names and values are kept in two flat arrays,
+	 * when accessed as a List&lt;String[]&gt; (see {@link #getResponseHeaders()}) each element is {name, value},
+	 * and the name of the status line is null.
+	 */
+	public static final class Headers extends AbstractList<String[]> {
+		private String[] names = new String[16], values = new String[16];
+		private int size;
+
+		public void add(String name, String value) {
+			if (size == names.length) {
+				names = Arrays.copyOf(names, size * 2);
+				values = Arrays.copyOf(values, size * 2);
+			}
+			names[size] = name;
+			values[size++] = value;
+			modCount++;
+		}
+
+		@Override
+		public void add(int index, String[] kv) {
+			if (index != size) throw new UnsupportedOperationException("append only");
+			add(kv[0], kv.length > 1 ? kv[1] : null);
+		}
+
+		@Override
+		public String[] get(int index) {
+			return new String[] { getName(index), getValue(index) };
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		public void clear() {
+			Arrays.fill(names, 0, size, null);
+			Arrays.fill(values, 0, size, null);
+			size = 0;
+			modCount++;
+		}
+
+		public String getName(int index) {
+			if (index >= size) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+			return names[index];
+		}
+
+		public String getValue(int index) {
+			if (index >= size) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+			return values[index];
+		}
+
+		/** @return 从fromIndex开始第一个名称匹配（大小写无关）的位置，如无则返回-1 / index of the first header named so (case-insensitive), or -1 */
+		public int indexOf(String name, int fromIndex) {
+			for (int i = fromIndex; i < size; i++) if (name.equalsIgnoreCase(names[i])) return i;
+			return -1;
+		}
+
+		/** @return 第一个值，如无则返回null / the first value of the header, or null */
+		public String getFirst(String name) {
+			int idx = indexOf(name, 0);
+			return idx >= 0 ? values[idx] : null;
+		}
+
+		public List<String> getAll(String name) {
+			List<String> result = new ArrayList<String>(2);
+			for (int i = indexOf(name, 0); i >= 0; i = indexOf(name, i + 1)) result.add(values[i]);
+			return result;
+		}
+
+		/** @return 状态行，如"HTTP/1.1 200 OK" / the status line, e.g. "HTTP/1.1 200 OK" */
+		public String getStatusLine() {
+			return size > 0 && names[0] == null ? values[0] : null;
+		}
+	}
+
+	/** 基于HttpURLConnection的默认传输层，仅支持HTTP/1.1 / The default transport based on HttpURLConnection, HTTP/1.1 only */
+	private static final class UrlConnectionTransport implements Transport {
+		public Exchange open(Request req) throws Exception {
+			if (verbose) {
+				Util.logStderr("Prepare open connection - URL.openConnection()");
+			}
+			final HttpURLConnection con = (HttpURLConnection) req.url.openConnection(req.proxy);
+			if (verbose) {
+				Util.logStderr("Done prepare open connection");
+			}
+			con.setRequestMethod(req.method);
+			con.setUseCaches(false);
+			con.setConnectTimeout(req.connectTimeout);
+			con.setReadTimeout(req.readTimeout);
+			con.setInstanceFollowRedirects(false);
+			if (con instanceof HttpsURLConnection) {
+				if (req.insecure) ((HttpsURLConnection) con).setHostnameVerifier(insecureVerifier);
+				if (req.sslSocketFactory != null) ((HttpsURLConnection) con).setSSLSocketFactory(req.sslSocketFactory);
+			}
+			if (verbose) {
+				Util.logStderr("Prepare headers");
+			}
+			boolean close = false;
+			for (Map.Entry<String, String> h: req.headers.entrySet()) {
+				con.setRequestProperty(h.getKey(), h.getValue());
+				if ("Connection".equalsIgnoreCase(h.getKey())) close = "close".equalsIgnoreCase(h.getValue());
+			}
+			// --no-keepalive, "Connection" is a restricted header unless -Dsun.net.http.allowRestrictedHeaders=true
+			final boolean disconnect = close && !"close".equalsIgnoreCase(con.getRequestProperty("Connection"));
+			final URI uri = req.cookieHandler != null ? req.url.toURI() : null;
+			if (uri != null) {
+				for (Map.Entry<String, List<String>> en: req.cookieHandler.get(uri, Collections.<String, List<String>>emptyMap()).entrySet()) {
+					if (!en.getValue().isEmpty()) con.addRequestProperty(en.getKey(), Util.join(en.getValue(), "; ", ""));
+				}
+			}
+			if (verbose) {
+				Util.logStderr("Done preparing headers");
+			}
+			long length = req.body != null ? req.body.length() : 0;
+			if (req.body != null) {
+				con.setDoInput(true);
+				con.setDoOutput(true);
+//				if (!ignoreContentLength) {
+				if (length >= 0) con.setFixedLengthStreamingMode(length); // Content-Length is sent by HttpURLConnection
+				else con.setChunkedStreamingMode(0); // unknown length, fallback to chunked encoding
+			}
+			try {
+				con.connect(); // explicitly, so it can be timed. Also performs the TLS handshake, or reuses a kept-alive connection
+			} catch (Exception ex) { // connect timeout
+				if (req.body != null) throw new Recoverable(ex, -1);
+				throw ex;
+			}
+			req.timing.markConnect();
+			if (con instanceof HttpsURLConnection) req.timing.markAppConnect();
+			req.onAbort(con::disconnect); // --max-time, e.g. a slow upload
+			if (req.body != null) {
+				try {
+					if (verbose) {
+						Util.logStderr("Start getOutputStream, Content-Length: " + length);
+					}
+					OutputStream os = con.getOutputStream();
+					req.body.writeTo(os);
+					os.flush();
+					if (verbose) {
+						Util.logStderr("Done sending data");
+					}
+				} catch (Exception ex) { // connect timeout
+					throw new Recoverable(ex, -1);
+				}
+			}
+			return new Exchange() {
+				private boolean cookiesStored;
+				public int getResponseCode() throws IOException {
+					int code = con.getResponseCode();
+					if (uri != null && !cookiesStored) {
+						cookiesStored = true;
+						req.cookieHandler.put(uri, con.getHeaderFields());
+					}
+					return code;
+				}
+				public Headers getResponseHeaders() {
+					Headers headers = new Headers();
+					for (int i = 0; ; i++) { // public API of HttpURLConnection, in the order received
+						String k = con.getHeaderFieldKey(i), v = con.getHeaderField(i);
+						if (k == null && v == null) break;
+						headers.add(k, v);
+					}
+					return headers;
+				}
+				public String getHeaderField(String name) { return con.getHeaderField(name); }
+				public InputStream getInputStream() throws IOException { return con.getInputStream(); }
+				public InputStream getErrorStream() { return con.getErrorStream(); }
+				public void cancel() { con.disconnect(); }
+				public void release() {
+					if (disconnect) con.disconnect(); // not to be kept alive though the header was not sent
+				}
+			};
+		}
+	}
+
+	/**
+	 * 对冲请求：首个请求在hedgeAfter毫秒内未收到应答头时，在Executor中发出第二个相同的请求，先收到应答者胜出，另一个被取消。
+	 * 两个请求都在Executor中执行，读取请求的Cookie，但收到的Cookie暂存，仅胜出者的Cookie被写回。
+	 * Hedged request: if the first attempt has not got the response headers within hedgeAfter milliseconds,
+	 * a second identical attempt is started, the first response wins and the other attempt is cancelled.
+	 * Both attempts run in the executor and read the cookies of the request, the cookies received are deferred,
+	 * only those of the winner are stored.
+	 */
+	private static final class Hedge {
+		private final Transport transport;
+		private final Request request;
+		private final java.net.CookieStore store;
+		private final CompletableFuture<Exchange> winner = new CompletableFuture<Exchange>();
+		private final List<Exchange> exchanges = new ArrayList<Exchange>(2);
+		private DeferredCookies winnerCookies;
+		private int running;
+		private boolean hedged;
+
+		Hedge(Transport transport, Request request) {
+			this.transport = transport;
+			this.request = request;
+			CookieHandler handler = request.getCookieHandler();
+			this.store = handler instanceof CookieManager ? ((CookieManager) handler).getCookieStore() : null;
+		}
+
+		/** @return 已获得应答码的Exchange / the winning exchange, its response code is available */
+		Exchange exec(long hedgeAfter) throws Exception {
+			Executor executor = getDefaultExecutor();
+			launch(executor);
+			try {
+				try {
+					return await(hedgeAfter);
+				} catch (TimeoutException e) {
+					if (verbose) {
+						Util.logStderr("No response in %d ms, send hedged request", hedgeAfter);
+					}
+					hedged = launch(executor);
+					return await(0);
+				}
+			} finally {
+				cancelLosers();
+			}
+		}
+
+		private Exchange await(long timeout) throws Exception {
+			Exchange con;
+			try {
+				con = timeout > 0 ? winner.get(timeout, TimeUnit.MILLISECONDS) : winner.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				winner.cancel(false);
+				throw new InterruptedIOException(e.getMessage());
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof Exception) throw (Exception) cause;
+				throw (Error) cause;
+			}
+			if (winnerCookies != null) winnerCookies.commit(); // the cookies of the winning attempt
+			return con;
+		}
+
+		private synchronized boolean launch(Executor executor) {
+			if (winner.isDone()) return false;
+			running++;
+			executor.execute(new Runnable() {
+				public void run() { attempt(); }
+			});
+			return true;
+		}
+
+		private void attempt() {
+			DeferredCookies cookies = store != null ? new DeferredCookies(store) : null;
+			Exchange con = null;
+			try {
+				con = transport.open(cookies != null ? request.withCookieHandler(new CookieManager(cookies, CookiePolicy.ACCEPT_ALL)) : request);
+				synchronized (this) {
+					if (winner.isDone()) return; // lost before sending, cancelled in finally
+					exchanges.add(con);
+				}
+				con.getResponseCode();
+				synchronized (this) {
+					running--;
+					if (!winner.isDone()) {
+						winnerCookies = cookies;
+						winner.complete(con);
+						con = null;
+					}
+				}
+			} catch (Throwable e) {
+				synchronized (this) {
+					if (--running == 0) winner.completeExceptionally(e); // all attempts failed, report the last error
+				}
+			} finally {
+				if (con != null) con.cancel();
+			}
+		}
+
+		private synchronized void cancelLosers() {
+			Exchange won = winner.getNow(null);
+			for (Exchange con: exchanges) {
+				if (con != won) con.cancel();
+			}
+		}
+
+		/** Reads the target store, defers the cookies added by CookieManager until commit */
+		private static final class DeferredCookies implements java.net.CookieStore {
+			private final java.net.CookieStore target;
+			private final List<Object[]> added = new ArrayList<Object[]>();
+
+			DeferredCookies(java.net.CookieStore target) {
+				this.target = target;
+			}
+
+			public synchronized void add(URI uri, HttpCookie cookie) {
+				added.add(new Object[] { uri, cookie });
+			}
+
+			public List<HttpCookie> get(URI uri) {
+				synchronized (target) { return target.get(uri); } // read by both attempts
+			}
+
+			public List<HttpCookie> getCookies() {
+				synchronized (target) { return target.getCookies(); }
+			}
+
+			public List<URI> getURIs() {
+				synchronized (target) { return target.getURIs(); }
+			}
+
+			public boolean remove(URI uri, HttpCookie cookie) { throw new UnsupportedOperationException(); }
+			public boolean removeAll() { throw new UnsupportedOperationException(); }
+
+			synchronized void commit() {
+				synchronized (target) {
+					for (Object[] a: added) target.add((URI) a[0], (HttpCookie) a[1]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * 在--max-time到期时中止请求，包括缓慢的发送、等待应答（或对冲请求）及接收，仅在需要时创建线程
+	 * Aborts the request when --max-time expires, i.e. a slow upload, waiting for the response (or the hedged attempts),
+	 * or a slowly dripping response. The thread is created on demand.
+	 */
+	private static final class Watchdog {
+		private static final ScheduledThreadPoolExecutor TIMER = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "CUrl-watchdog");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		static {
+			TIMER.setRemoveOnCancelPolicy(true); // most tasks are cancelled when the exchange completes in time
+		}
+
+		static ScheduledFuture<?> schedule(final Request req, long delay) {
+			return TIMER.schedule(new Runnable() {
+				public void run() { req.abort(); }
+			}, Math.max(delay, 0), TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * 基于Socket的HTTP/1.1传输层及其连接池，通过{@link CUrl#setDefaultTransport(Transport)}启用。
+	 * 可限制每个路由（协议、主机、端口、代理及TLS配置）及总的连接数，超出时等待空闲连接；空闲超时或超过最长存活时间的连接被关闭。
+	 * 未读完的应答（如错误应答或--x-max-download截断）在关闭时最多读取drainLimit字节以便复用连接，否则关闭连接。
+	 * HTTP/1.1 transport over sockets managed by this pool, enabled with {@link CUrl#setDefaultTransport(Transport)}.
+	 * Connections are limited per route (scheme, host, port, proxy and TLS settings) and in total, requests wait for a free
+	 * connection when the limits are reached. Idle connections are closed after the idle timeout or the max lifetime.
+	 * A response which is not read up to its end (e.g. an error body, or truncated by --x-max-download) is drained on close
+	 * up to drainLimit bytes so the connection can be reused, otherwise the connection is closed.
+	 * Requests with "Connection: close" (see --no-keepalive) are not kept.
+	 * The pool is opt-in on purpose: the default transport stays on HttpURLConnection for compatibility, as it honors
+	 * JVM-wide settings like http.keepAlive, http.maxConnections and java.net.Authenticator, which the pool does not.
+	 */
+	public static final class ConnectionPool implements Transport {
+		private final int maxPerRoute, maxTotal;
+		private volatile long idleTimeout = 30000, maxLifetime = 0, maxWait = 0;
+		private volatile int drainLimit = 64 * 1024;
+		private final Map<Object, ArrayDeque<Http1Exchange.Connection>> idle = new HashMap<Object, ArrayDeque<Http1Exchange.Connection>>();
+		private final Map<Object, int[]> leased = new HashMap<Object, int[]>();
+		private int idleCount, leasedCount;
+		private long requests, reused, created, closed, waits, waitNanos, maxWaitNanos, lastSweep;
+		private boolean shutdown;
+
+		/**
+		 * @param maxPerRoute 每个路由的最大连接数 / maximum connections per route
+		 * @param maxTotal 最大连接总数 / maximum connections in total
+		 */
+		public ConnectionPool(int maxPerRoute, int maxTotal) {
+			this.maxPerRoute = maxPerRoute;
+			this.maxTotal = maxTotal;
+		}
+
+		/** 空闲连接的超时毫秒数，默认30秒 / Milliseconds to keep an idle connection, 30 seconds by default */
+		public ConnectionPool idleTimeout(long millis) {
+			idleTimeout = millis;
+			return this;
+		}
+
+		/** 连接的最长存活毫秒数，默认0即不限 / Maximum lifetime of a connection in milliseconds, 0 (default) for unlimited */
+		public ConnectionPool maxLifetime(long millis) {
+			maxLifetime = millis;
+			return this;
+		}
+
+		/** 等待空闲连接的最长毫秒数，默认0即使用连接超时 / Maximum milliseconds to wait for a connection, 0 (default) to use the connect timeout */
+		public ConnectionPool maxWait(long millis) {
+			maxWait = millis;
+			return this;
+		}
+
+		/** 关闭未读完的应答时最多读取的字节数，0为直接关闭连接，默认64KB / Bytes to drain from an unfinished response on close, 0 to close the connection, 64KB by default */
+		public ConnectionPool drainLimit(int bytes) {
+			drainLimit = bytes;
+			return this;
+		}
+
+		public int getDrainLimit() {
+			return drainLimit;
+		}
+
+		public Exchange open(Request request) throws Exception {
+			return Http1Exchange.open(this, request);
+		}
+
+		/**
+		 * 租用一个连接，返回null时调用者应新建连接并在失败时调用release(null, route, false)
+		 * @return an idle connection, or null if the caller should create a new one, for which a slot is reserved
+		 */
+		Http1Exchange.Connection lease(Object route, int connectTimeout) throws IOException {
+			long start = System.nanoTime(), wait = maxWait > 0 ? maxWait : connectTimeout;
+			boolean waited = false;
+			while (true) {
+				Http1Exchange.Connection con;
+				synchronized (this) {
+					if (!waited) requests++;
+					while (true) {
+						if (shutdown) throw new IOException("Connection pool closed");
+						long now = System.currentTimeMillis();
+						if (now - lastSweep > 1000) evictExpired(now);
+						ArrayDeque<Http1Exchange.Connection> dq = idle.get(route);
+						con = dq != null ? dq.pollFirst() : null; // the most recently used
+						if (con != null) {
+							idleCount--;
+							if (expired(con, now)) {
+								discard(con);
+								continue;
+							}
+							leased(route, 1);
+							break;
+						}
+						int routeLeased = leased.containsKey(route) ? leased.get(route)[0] : 0;
+						if (routeLeased < maxPerRoute && leasedCount + idleCount >= maxTotal && idleCount > 0) {
+							evictOldest(); // make room from the idle connections of other routes
+						}
+						if (routeLeased < maxPerRoute && leasedCount + idleCount < maxTotal) {
+							leased(route, 1);
+							created++;
+							break;
+						}
+						if (!waited) {
+							waited = true;
+							waits++;
+						}
+						long remaining = wait > 0 ? wait - (System.nanoTime() - start) / 1000000 : 0;
+						if (wait > 0 && remaining <= 0) throw new ConnectException("Timeout waiting for a pooled connection");
+						try {
+							wait(remaining);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							throw new InterruptedIOException(e.getMessage());
+						}
+					}
+					if (waited) {
+						long nanos = System.nanoTime() - start;
+						waitNanos += nanos;
+						maxWaitNanos = Math.max(maxWaitNanos, nanos);
+					}
+				}
+				if (con == null) return null;
+				if (!con.isStale()) { // checked out of the lock, it takes a millisecond
+					synchronized (this) { reused++; }
+					return con;
+				}
+				synchronized (this) { // replaced by a new connection in the same slot
+					discard(con);
+					created++;
+				}
+				return null;
+			}
+		}
+
+		/** 归还或关闭连接 / Return the connection to the pool, or close it */
+		synchronized void release(Http1Exchange.Connection con, Object route, boolean reusable) {
+			leased(route, -1);
+			if (con != null) {
+				long now = System.currentTimeMillis();
+				if (reusable && !shutdown && !expired(con, now)) {
+					con.idleSince = now;
+					ArrayDeque<Http1Exchange.Connection> dq = idle.get(route);
+					if (dq == null) idle.put(route, dq = new ArrayDeque<Http1Exchange.Connection>());
+					dq.addFirst(con);
+					idleCount++;
+				} else {
+					discard(con);
+				}
+			}
+			notifyAll();
+		}
+
+		private void leased(Object route, int delta) {
+			int[] count = leased.get(route);
+			if (count == null) leased.put(route, count = new int[1]);
+			count[0] += delta;
+			leasedCount += delta;
+			if (count[0] == 0) leased.remove(route);
+		}
+
+		private boolean expired(Http1Exchange.Connection con, long now) {
+			return idleTimeout > 0 && con.idleSince > 0 && now - con.idleSince >= idleTimeout
+					|| maxLifetime > 0 && now - con.createdAt >= maxLifetime;
+		}
+
+		private void discard(Http1Exchange.Connection con) {
+			con.close();
+			closed++;
+		}
+
+		private void evictOldest() {
+			ArrayDeque<Http1Exchange.Connection> oldest = null;
+			for (ArrayDeque<Http1Exchange.Connection> dq: idle.values()) {
+				if (!dq.isEmpty() && (oldest == null || dq.peekLast().idleSince < oldest.peekLast().idleSince)) oldest = dq;
+			}
+			if (oldest != null) {
+				discard(oldest.pollLast());
+				idleCount--;
+			}
+		}
+
+		private void evictExpired(long now) {
+			lastSweep = now;
+			for (Iterator<ArrayDeque<Http1Exchange.Connection>> it = idle.values().iterator(); it.hasNext(); ) {
+				ArrayDeque<Http1Exchange.Connection> dq = it.next();
+				for (Iterator<Http1Exchange.Connection> ci = dq.iterator(); ci.hasNext(); ) {
+					Http1Exchange.Connection con = ci.next();
+					if (expired(con, now)) {
+						ci.remove();
+						discard(con);
+						idleCount--;
+					}
+				}
+				if (dq.isEmpty()) it.remove();
+			}
+		}
+
+		/** 关闭超时的空闲连接，通常在获取连接时自动进行 / Close the expired idle connections, which is done on lease anyway */
+		public synchronized void evictExpired() {
+			evictExpired(System.currentTimeMillis());
+		}
+
+		/** 关闭所有空闲连接，租用中的连接在归还时关闭 / Close all idle connections, the leased ones are closed when released */
+		public synchronized void close() {
+			shutdown = true;
+			for (ArrayDeque<Http1Exchange.Connection> dq: idle.values()) {
+				for (Http1Exchange.Connection con: dq) discard(con);
+			}
+			idle.clear();
+			idleCount = 0;
+			notifyAll();
+		}
+
+		/** @return 请求数 / number of requests */
+		public synchronized long getRequests() { return requests; }
+		/** @return 复用连接的请求数 / number of requests on a reused connection */
+		public synchronized long getReused() { return reused; }
+		/** @return 新建的连接数 / number of connections created */
+		public synchronized long getCreated() { return created; }
+		/** @return 关闭的连接数 / number of connections closed by the pool */
+		public synchronized long getClosed() { return closed; }
+		/** @return 等待空闲连接的请求数 / number of requests which waited for a connection */
+		public synchronized long getWaits() { return waits; }
+		/** @return 等待连接的总毫秒数 / total milliseconds waited for connections */
+		public synchronized long getWaitTime() { return waitNanos / 1000000; }
+		/** @return 等待连接的最长毫秒数 / longest wait for a connection in milliseconds */
+		public synchronized long getMaxWaitTime() { return maxWaitNanos / 1000000; }
+		/** @return 复用率 / ratio of requests on a reused connection */
+		public synchronized double getReuseRate() { return requests > 0 ? (double) reused / requests : 0; }
+		public synchronized int getLeased() { return leasedCount; }
+		public synchronized int getIdle() { return idleCount; }
+
+		public synchronized String toString() {
+			return "ConnectionPool<leased=" + leasedCount + ",idle=" + idleCount + ",requests=" + requests + ",reused=" + reused
+					+ ",created=" + created + ",closed=" + closed + ",waits=" + waits + ">";
+		}
+	}
+
+	/**
+	 * 客户端级的DNS缓存，通过{@link CUrl#setDnsCache(DnsCache)}启用。解析结果在ttl内直接使用，过期后staleTtl内仍返回旧结果并在后台刷新；
+	 * 解析在Executor中进行，可设置超时，同一主机的并发解析合并为一次。解析得到的地址由自行建立连接的传输层（如{@link ConnectionPool}）使用，
+	 * HttpURLConnection及HttpClient仍经JVM解析，但默认的解析器会预热JVM的缓存，因此同样受超时保护。
+	 * Client-level DNS cache, enabled with {@link CUrl#setDnsCache(DnsCache)}. Addresses are fresh within ttl, and are still
+	 * returned within staleTtl afterwards while a background refresh is running (stale-while-revalidate). Lookups run in the
+	 * default executor with an optional timeout, concurrent lookups of the same host are coalesced. The addresses are used by
+	 * transports which connect the sockets themselves (i.e. {@link ConnectionPool}). HttpURLConnection and HttpClient resolve
+	 * through the JVM, whose cache is warmed by the default lookup, so they benefit from the lookup timeout as well.
+	 */
+	public static final class DnsCache {
+		/** 可替换的解析器，如测试用的桩 / Pluggable name lookup, e.g. a stub for testing */
+		public interface Lookup {
+			InetAddress[] lookup(String host) throws UnknownHostException;
+		}
+
+		private static final Lookup SYSTEM = new Lookup() {
+			public InetAddress[] lookup(String host) throws UnknownHostException {
+				return InetAddress.getAllByName(host);
+			}
+		};
+
+		private static final class Entry {
+			final InetAddress[] addresses;
+			final long expires;
+			Entry(InetAddress[] addresses, long expires) {
+				this.addresses = addresses;
+				this.expires = expires;
+			}
+		}
+
+		private final long ttl, staleTtl;
+		private volatile long lookupTimeout = 0;
+		private volatile Lookup lookup = SYSTEM;
+		private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+		private final ConcurrentHashMap<String, CompletableFuture<InetAddress[]>> pending = new ConcurrentHashMap<String, CompletableFuture<InetAddress[]>>();
+		private final AtomicLong hits = new AtomicLong(), staleHits = new AtomicLong(), misses = new AtomicLong(),
+				lookups = new AtomicLong(), failures = new AtomicLong(), timeouts = new AtomicLong();
+
+		/**
+		 * @param ttl 解析结果的有效毫秒数 / milliseconds the addresses are fresh
+		 * @param staleTtl 过期后仍可使用并后台刷新的毫秒数 / milliseconds the expired addresses are still used while refreshing
+		 */
+		public DnsCache(long ttl, long staleTtl) {
+			this.ttl = ttl;
+			this.staleTtl = staleTtl;
+		}
+
+		/** 解析超时毫秒数，默认0即不限 / Timeout of a lookup in milliseconds, 0 (default) for unlimited */
+		public DnsCache lookupTimeout(long millis) {
+			lookupTimeout = millis;
+			return this;
+		}
+
+		/** 替换解析器，默认为InetAddress.getAllByName / Replace the lookup, InetAddress.getAllByName by default */
+		public DnsCache lookup(Lookup lookup) {
+			this.lookup = lookup;
+			return this;
+		}
+
+		public InetAddress[] resolve(String host) throws UnknownHostException {
+			if (host.indexOf(':') >= 0 || host.matches("[0-9.]+")) return InetAddress.getAllByName(host); // IP literal
+			String key = host.toLowerCase();
+			Entry entry = entries.get(key);
+			long now = System.currentTimeMillis();
+			if (entry != null && now < entry.expires) {
+				hits.incrementAndGet();
+				return entry.addresses;
+			}
+			if (entry != null && now < entry.expires + staleTtl) {
+				staleHits.incrementAndGet();
+				refresh(key);
+				return entry.addresses;
+			}
+			misses.incrementAndGet();
+			CompletableFuture<InetAddress[]> future = refresh(key);
+			try {
+				long timeout = lookupTimeout;
+				return timeout > 0 ? future.get(timeout, TimeUnit.MILLISECONDS) : future.get();
+			} catch (TimeoutException e) {
+				timeouts.incrementAndGet();
+				throw new UnknownHostException(host + ": lookup timed out after " + lookupTimeout + " ms");
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new UnknownHostException(host + ": lookup interrupted");
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof UnknownHostException) throw (UnknownHostException) e.getCause();
+				UnknownHostException uhe = new UnknownHostException(host);
+				uhe.initCause(e.getCause());
+				throw uhe;
+			}
+		}
+
+		/**
+		 * 在后台预先解析URL的主机名 / Resolve the hosts of the URLs in background
+		 * @return 全部解析完成时完成，不会异常完成 / completes when all lookups are done, never completes exceptionally
+		 */
+		public CompletableFuture<Void> prefetch(Collection<String> urls) {
+			List<CompletableFuture<?>> futures = new ArrayList<CompletableFuture<?>>();
+			long now = System.currentTimeMillis();
+			for (String url: urls) {
+				String host;
+				try { host = new URL(url).getHost().toLowerCase(); } catch (MalformedURLException e) { continue; }
+				Entry entry = entries.get(host);
+				if (host.length() == 0 || entry != null && now < entry.expires) continue;
+				futures.add(refresh(host).handle((aa, ex) -> null));
+			}
+			return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]));
+		}
+
+		/** Start a lookup unless one is in progress */
+		private CompletableFuture<InetAddress[]> refresh(final String host) {
+			CompletableFuture<InetAddress[]> future = pending.get(host);
+			if (future != null) return future;
+			final CompletableFuture<InetAddress[]> created = new CompletableFuture<InetAddress[]>();
+			if ((future = pending.putIfAbsent(host, created)) != null) return future;
+			lookups.incrementAndGet();
+			final Lookup lookup = this.lookup;
+			try {
+				getDefaultExecutor().execute(new Runnable() {
+					public void run() {
+						try {
+							InetAddress[] addresses = lookup.lookup(host);
+							entries.put(host, new Entry(addresses, System.currentTimeMillis() + ttl));
+							created.complete(addresses);
+						} catch (Throwable e) {
+							failures.incrementAndGet();
+							created.completeExceptionally(e);
+						} finally {
+							pending.remove(host, created);
+						}
+					}
+				});
+			} catch (Throwable e) { // RejectedExecutionException
+				pending.remove(host, created);
+				created.completeExceptionally(e);
+			}
+			return created;
 		}
 
-		public void close() {
-			try { if (is != null) is.close(); } catch (Exception ignored) {}
-			try { if (os != null) os.close(); } catch (Exception ignored) {}
+		public void clear() {
+			entries.clear();
 		}
 
-		public String toString() {
-			return "FileIO<" + f + ">";
+		/** @return 命中未过期结果的次数 / lookups served by fresh addresses */
+		public long getHits() { return hits.get(); }
+		/** @return 命中过期结果并后台刷新的次数 / lookups served by stale addresses while refreshing */
+		public long getStaleHits() { return staleHits.get(); }
+		/** @return 需等待解析的次数 / lookups which had to wait */
+		public long getMisses() { return misses.get(); }
+		/** @return 实际调用解析器的次数 / calls of the underlying lookup */
+		public long getLookups() { return lookups.get(); }
+		public long getFailures() { return failures.get(); }
+		public long getTimeouts() { return timeouts.get(); }
+	}
+
+	/** 延迟加载的HTTP/2传输层，java.net.http不可用时为null / Lazily loaded HTTP/2 transport, null if java.net.http is not available */
+	private static final class Http2Holder {
+		static final Transport INSTANCE;
+		static {
+			Transport t = null;
+			try { t = (Transport) Class.forName("com.roxstudio.utils.HttpClientTransport").getDeclaredConstructor().newInstance(); } catch (Throwable ignored) {}
+			INSTANCE = t;
 		}
 	}
 
-	public static final class MemIO extends ByteArrayOutputStream implements IO {
-		public MemIO() { super(0); }
-		public InputStream getInputStream() { return new ByteArrayInputStream(buf, 0, count); }
-		public OutputStream getOutputStream() { return this; }
-		public void setAppend(boolean append) { if (!append) this.reset(); }
-		public void close() {} // not needed
-		public String toString() { return "MemIO<" + this.hashCode() + ">"; }
+	/**
+	 * 重试策略，决定失败的请求是否重试及重试前的等待时间。--retry-max-time及重试预算由CUrl另行检查。
+	 * Retry policy, decides whether a failed attempt is retried and how long to wait before it.
+	 * --retry-max-time and the {@link RetryBudget} are checked by CUrl in addition.
+	 */
+	public interface RetryPolicy {
 		/**
-		 * This is useful when the MemIO was used as the target of --dump-header
-		 * @return
+		 * @param attempt 当前URL已失败的次数，从1开始 / number of failed attempts of current URL, starting from 1
+		 * @param httpCode 应答码，无应答时为-1 / the response code, -1 if there's no response
+		 * @param error 异常，如为Recoverable则表示可安全重试 / the error, a Recoverable means it's safe to retry
+		 * @param retryAfter 应答头Retry-After指定的毫秒数，如无则为-1 / milliseconds specified by the Retry-After header, -1 if none
+		 * @return 重试前等待的毫秒数，-1表示不重试 / milliseconds to wait before retrying, -1 to give up
 		 */
-		public Map<String, String> parseDumpedHeader() {
-			Map<String, String> result = new LinkedHashMap<String, String>();
-			String s = Util.b2s(this.toByteArray(), null, null);
-			for (String l: s.split("[\r\n]+")) {
-				if (l.trim().length() == 0) continue;
-				String[] kv = l.split(":", 2);
-				result.put(kv[0], kv.length > 1 ? kv[1].trim() : "");
-			}
-			return result;
-		}
+		long nextDelay(int attempt, int httpCode, Throwable error, long retryAfter);
+	}
 
-		public List<HttpCookie> parseCookieJar() {
-			return parseCookies(Util.b2s(this.toByteArray(), null, null));
+	/**
+	 * 默认重试策略，与curl一致：重试可恢复的异常（超时、连接失败等）及HTTP 408/429/500/502/503/504，
+	 * 未指定--retry-delay时以1秒为基数指数退避（最长10分钟），并在[0, 退避时间]内随机等待，避免客户端同时重试。
+	 * The default retry policy, compatible with curl: retries the recoverable errors (timeouts, connection failures etc.)
+	 * and HTTP 408/429/500/502/503/504, or all errors with --retry-all-errors. Without --retry-delay it backs off
+	 * exponentially from 1 second up to 10 minutes with full jitter, i.e. waits a random time in [0, backoff],
+	 * so the clients do not retry in lockstep. Retry-After of 429/503 responses takes precedence.
+	 */
+	public static final class BackoffRetryPolicy implements RetryPolicy {
+		public static final long BASE_DELAY = 1000L, MAX_DELAY = 600000L;
+		private static final Set<Integer> RETRYABLE_CODES = new HashSet<Integer>(Arrays.asList(408, 429, 500, 502, 503, 504));
+
+		private final int maxRetries;
+		private final long fixedDelay;
+		private final boolean retryAllErrors;
+
+		/**
+		 * @param maxRetries 最大重试次数 / max number of retries
+		 * @param fixedDelay 固定的重试间隔毫秒数，0为指数退避 / fixed delay in milliseconds, 0 for exponential backoff
+		 * @param retryAllErrors 重试所有错误 / retry all errors
+		 */
+		public BackoffRetryPolicy(int maxRetries, long fixedDelay, boolean retryAllErrors) {
+			this.maxRetries = maxRetries;
+			this.fixedDelay = fixedDelay;
+			this.retryAllErrors = retryAllErrors;
 		}
 
+		public long nextDelay(int attempt, int httpCode, Throwable error, long retryAfter) {
+			if (attempt > maxRetries) return -1;
+			if (!retryAllErrors && !RETRYABLE_CODES.contains(httpCode) && !isRecoverable(error.getClass())) return -1;
+			if (retryAfter >= 0) return Math.min(retryAfter, MAX_DELAY);
+			if (fixedDelay > 0) return fixedDelay;
+			long backoff = attempt > 20 ? MAX_DELAY : Math.min(MAX_DELAY, BASE_DELAY << (attempt - 1));
+			return (long) (ThreadLocalRandom.current().nextDouble() * backoff); // full jitter
+		}
 	}
 
-	public static class CookieIO implements IO, java.net.CookieStore {
+	/**
+	 * 重试预算，限制所有请求的重试总量：每个请求存入ratio个令牌，每次重试消耗一个，最多积累reserve个。
+	 * 当后端整体故障时，重试次数被限制在请求数的一定比例内，而不会成倍放大负载。
+	 * Retry budget shared by requests: every request deposits ratio tokens, every retry withdraws one token,
+	 * and at most reserve tokens can be accumulated. So during an outage retries are bounded to a fraction of
+	 * the requests instead of multiplying the load on the recovering backends.
+	 */
+	public static final class RetryBudget {
+		private static final long UNIT = 1000L; // tokens are counted in 1/1000
+		private final long deposit, max;
+		private final AtomicLong balance, rejected = new AtomicLong();
 
-		public InputStream getInputStream() { throw new RuntimeException(); }
-		public OutputStream getOutputStream() { throw new RuntimeException(); }
-		public void setAppend(boolean append) {}
-		public void close() {}
+		/**
+		 * @param ratio 每个请求允许的重试次数，如0.1表示重试最多为请求数的10% / retries allowed per request
+		 * @param reserve 初始及最多可积累的重试次数，用于应对突发 / initial and max retries that can be accumulated for bursts
+		 */
+		public RetryBudget(double ratio, int reserve) {
+			deposit = (long) (ratio * UNIT);
+			max = Math.max(reserve, 1) * UNIT;
+			balance = new AtomicLong(reserve * UNIT);
+		}
 
-		protected final Map<String, List<HttpCookie>> cookiesMap;
+		void deposit() {
+			long b;
+			do {
+				if ((b = balance.get()) >= max) return;
+			} while (!balance.compareAndSet(b, Math.min(max, b + deposit)));
+		}
 
-		public CookieIO() {
-			cookiesMap = new HashMap<String, List<HttpCookie>>();
+		boolean tryWithdraw() {
+			long b;
+			do {
+				if ((b = balance.get()) < UNIT) {
+					rejected.incrementAndGet();
+					return false;
+				}
+			} while (!balance.compareAndSet(b, b - UNIT));
+			return true;
 		}
 
-		protected Map<String, List<HttpCookie>> getCookiesMap() {
-			return cookiesMap;
+		/** @return 当前可用的重试次数 / retries available now */
+		public double getBalance() { return balance.get() / (double) UNIT; }
+		/** @return 因预算不足而放弃的重试次数 / number of retries rejected by the budget */
+		public long getRejected() { return rejected.get(); }
+	}
+
+	/**
+	 * 按host:port划分的熔断器集合。连续失败（连接失败、超时等可恢复的异常，或5xx应答）达到阈值后熔断，
+	 * 此后对该主机的请求立即以{@link CircuitOpenException}失败；经过openDuration后放行一个探测请求，成功则恢复。
+	 * Circuit breakers keyed by host:port. A breaker opens after the given number of consecutive failures
+	 * (recoverable errors such as connection failures and timeouts, or 5xx responses), then the requests to that host
+	 * fail fast with {@link CircuitOpenException}. After openDuration a single probe request is let through,
+	 * the breaker closes if it succeeds, otherwise it opens again for another openDuration.
+	 */
+	public static final class CircuitBreakers {
+		private final int failureThreshold;
+		private final long openDuration;
+		private final ConcurrentHashMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<String, CircuitBreaker>();
+
+		/**
+		 * @param failureThreshold 熔断前的连续失败次数 / consecutive failures to open the circuit
+		 * @param openDuration 熔断后到放行探测请求的毫秒数 / milliseconds before a probe is let through
+		 */
+		public CircuitBreakers(int failureThreshold, long openDuration) {
+			this.failureThreshold = failureThreshold;
+			this.openDuration = openDuration;
 		}
 
-		public void add(String uri, String key, String value) {
-			try {
-				this.add(new URI(uri), new HttpCookie(key, value));
-			} catch (URISyntaxException e) {
-				throw new IllegalArgumentException(e);
+		public CircuitBreaker get(String hostPort) {
+			CircuitBreaker cb = breakers.get(hostPort);
+			if (cb == null) {
+				CircuitBreaker created = new CircuitBreaker(hostPort, failureThreshold, openDuration);
+				cb = (cb = breakers.putIfAbsent(hostPort, created)) != null ? cb : created;
 			}
+			return cb;
 		}
 
-		@Override
-		public void add(URI uri, HttpCookie cookie) {
-			normalize(uri, cookie);
-			Map<String, List<HttpCookie>> map = Util.mapListAdd(getCookiesMap(), ArrayList.class, cookie.getDomain());
-			List<HttpCookie> cc = map.get(cookie.getDomain());
-			cc.remove(cookie);
-			if (cookie.getMaxAge() != 0) cc.add(cookie);
+		/** @return 所有熔断器的只读视图，供监控使用 / read-only view of all breakers, e.g. for dashboards */
+		public Map<String, CircuitBreaker> getBreakers() {
+			return Collections.unmodifiableMap(breakers);
 		}
 
-		@Override
-		public List<HttpCookie> get(URI uri) {
-			List<HttpCookie> result = getCookies();
-			String host = uri.getHost();
-			for (ListIterator<HttpCookie> it = result.listIterator(); it.hasNext();) {
-				String domain = it.next().getDomain();
-				if (!domainMatches(domain, host)) it.remove();
-			}
-			return result;
+		public void clear() {
+			breakers.clear();
 		}
+	}
 
-		@Override
-		public List<HttpCookie> getCookies() {
-			List<HttpCookie> result = new ArrayList<HttpCookie>();
-			for (List<HttpCookie> cc: getCookiesMap().values()) {
-				for (ListIterator<HttpCookie> it = cc.listIterator(); it.hasNext();)
-					if (it.next().hasExpired()) it.remove();
-				result.addAll(cc);
-			}
-			return result;
+	public static final class CircuitBreaker {
+		public enum State { CLOSED, OPEN, HALF_OPEN }
+
+		private final String hostPort;
+		private final int failureThreshold;
+		private final long openDuration;
+		private State state = State.CLOSED;
+		private int consecutiveFailures;
+		private long openedAt, successes, failures, rejected;
+
+		CircuitBreaker(String hostPort, int failureThreshold, long openDuration) {
+			this.hostPort = hostPort;
+			this.failureThreshold = failureThreshold;
+			this.openDuration = openDuration;
 		}
 
-		@Override
-		public List<URI> getURIs() {
-			Set<URI> result = new HashSet<URI>();
-			for (HttpCookie cookie: getCookies()) {
-				String scheme = cookie.getSecure() ? "https" : "http";
-				String domain = cookie.getDomain();
-				if (domain.startsWith(".")) domain = domain.substring(1);
-				try {
-					result.add(new URI(scheme, domain, cookie.getPath(), null));
-				} catch (URISyntaxException ignored) {}
+		/** @return 是否放行请求，熔断期满后的第一个请求作为探测请求放行 / whether the request may proceed */
+		synchronized boolean tryAcquire() {
+			if (state == State.CLOSED) return true;
+			if (state == State.OPEN && System.currentTimeMillis() - openedAt >= openDuration) {
+				state = State.HALF_OPEN; // let this request through as the probe
+				return true;
 			}
-			return new ArrayList<URI>(result);
+			rejected++;
+			return false;
 		}
 
-		@Override
-		public boolean remove(URI uri, HttpCookie cookie) {
-			normalize(uri, cookie);
-			List<HttpCookie> cc = getCookiesMap().get(cookie.getDomain());
-			return cc != null && cc.remove(cookie);
+		synchronized void onSuccess() {
+			successes++;
+			consecutiveFailures = 0;
+			state = State.CLOSED;
 		}
 
-		@Override
-		public boolean removeAll() {
-			getCookiesMap().clear();
-			return true;
+		synchronized void onFailure() {
+			failures++;
+			if (state == State.HALF_OPEN || ++consecutiveFailures >= failureThreshold) {
+				state = State.OPEN;
+				openedAt = System.currentTimeMillis();
+			}
 		}
 
-		private static void normalize(URI uri, HttpCookie cookie) {
-			if (cookie.getDomain() == null && uri != null) cookie.setDomain(uri.getHost());
-			if (cookie.getPath() == null && uri != null) cookie.setPath(uri.getPath());
-			if (Util.empty(cookie.getDomain())) throw new IllegalArgumentException("illegal cookie domain: " + cookie.getDomain());
-			if (Util.empty(cookie.getPath())) cookie.setPath("/");
-			cookie.setVersion(0);
+		/** 请求以其它原因结束，探测请求不计结果 / The request ended for other reasons, e.g. a probe failed before connecting */
+		synchronized void release() {
+			if (state == State.HALF_OPEN) state = State.OPEN;
 		}
 
-		/** Check a string domain-matches a given domain string or not. Refer to section 5.1.3 RFC6265 */
-		private static boolean domainMatches(String domain, String host) {
-			if (domain == null || host == null) return false;
-			if (domain.startsWith(".")) { // it's a suffix
-				return host.toLowerCase().endsWith(domain.toLowerCase());
-			} else {
-				return host.equalsIgnoreCase(domain);
-			}
+		/** @return 距离放行探测请求的毫秒数 / milliseconds until a probe is let through */
+		public synchronized long getRemainingOpenTime() {
+			return state == State.OPEN ? Math.max(0, openDuration - (System.currentTimeMillis() - openedAt)) : 0;
 		}
 
+		public String getHostPort() { return hostPort; }
+		public synchronized State getState() { return state; }
+		public synchronized int getConsecutiveFailures() { return consecutiveFailures; }
+		public synchronized long getSuccesses() { return successes; }
+		public synchronized long getFailures() { return failures; }
+		public synchronized long getRejected() { return rejected; }
+
+		public synchronized String toString() {
+			return "CircuitBreaker<" + hostPort + "," + state + ",successes=" + successes + ",failures=" + failures + ",rejected=" + rejected + ">";
+		}
 	}
 
-	public static final class CookieStore extends CookieIO {
+	/** 熔断器处于打开状态，请求未发出 / The circuit of the host is open, the request was not sent */
+	public static final class CircuitOpenException extends IOException {
+		private final String hostPort;
+		public CircuitOpenException(String hostPort, long remaining) {
+			super("Circuit open for " + hostPort + ", retry in " + remaining + " ms");
+			this.hostPort = hostPort;
+		}
+		public String getHostPort() { return hostPort; }
+	}
 
-		private final ThreadLocal<Map<String, List<HttpCookie>>> cookies = new ThreadLocal<Map<String, List<HttpCookie>>>() {
-			@Override protected synchronized Map<String, List<HttpCookie>> initialValue() {
-				return new HashMap<String, List<HttpCookie>>();
-			}
-		};
+	/**
+	 * 超出--max-time指定的总时间，getHttpCode返回{@link #HTTP_CODE}
+	 * The total time specified by --max-time is exceeded, getHttpCode returns {@link #HTTP_CODE}
+	 */
+	public static final class DeadlineExceededException extends IOException {
+		/** 同curl的超时退出码CURLE_OPERATION_TIMEDOUT / Same as curl's exit code CURLE_OPERATION_TIMEDOUT */
+		public static final int HTTP_CODE = -28;
+		public DeadlineExceededException(float maxTime, Throwable cause) {
+			super("Operation timed out after " + maxTime + " seconds", cause);
+		}
+	}
 
-		@Override
-		protected Map<String, List<HttpCookie>> getCookiesMap() {
-			return cookies.get();
+	/**
+	 * 传输速度低于--speed-limit的时间超过--speed-time，作为超时可被重试，getHttpCode返回-28
+	 * The transfer speed stayed below --speed-limit for --speed-time seconds. It's a timeout thus can be retried,
+	 * getHttpCode returns -28 ({@link DeadlineExceededException#HTTP_CODE}) if it's the final error.
+	 */
+	public static final class LowSpeedException extends SocketTimeoutException {
+		public LowSpeedException(long speedLimit, long speedTime) {
+			super("Operation too slow. Less than " + speedLimit + " bytes/sec transferred the last " + speedTime + " seconds");
 		}
 	}
 
@@ -1469,10 +4375,16 @@ public final class CUrl {
 			return singleLine ? s.replace("\r", "\\r").replace("\n", "\\n").replace("\t", "\\t") : s;
 		}
 
+		/** SimpleDateFormat is not thread-safe, thus one per thread */
+		private static final ThreadLocal<DateFormat> logDateFormat = new ThreadLocal<DateFormat>() {
+			@Override protected DateFormat initialValue() {
+				return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+			}
+		};
+
 		public static void logStderr(String msg, Object... args) {
 			if (args.length > 0) msg = String.format(msg, args);
-			DateFormat fmt =  new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
-			System.err.println("[ERR] [" + fmt.format(new Date()) + "] " + msg);
+			System.err.println("[ERR] [" + logDateFormat.get().format(new Date()) + "] " + msg);
 			//System.err.println("[ERR] [" + new Date() + "] " + msg);
 		}
 
@@ -1645,25 +4557,32 @@ public final class CUrl {
 		}
 
 		public static String base64Encode(byte[] bb) {
-			Class<?> clz = getClass("java.util.Base64", null);
-			if (clz != null) {
-				Object encoder = invokeSilent(null, clz, "getEncoder", false, null);
-				return (String) invokeSilent(encoder, null, "encodeToString", false, "[B", (Object) bb);
+			return Base64Holder.ENCODER.apply(bb);
+		}
+
+		/** Base64 encoder resolved once at the first use */
+		private static final class Base64Holder {
+			static final Function<byte[], String> ENCODER = resolveBase64Encoder();
+		}
+
+		private static Function<byte[], String> resolveBase64Encoder() {
+			if (getClass("java.util.Base64", null) != null) {
+				return java.util.Base64.getEncoder()::encodeToString; // direct call, no reflection
 			}
-			clz = getClass("sun.misc.BASE64Encoder", null);
+			Class<?> clz = getClass("sun.misc.BASE64Encoder", null);
 			if (clz != null) {
-				Object encoder = createInstance(clz, "", true);
-				return ((String) invokeSilent(encoder, null, "encode", true, "[B", (Object) bb)).replaceAll("[\r\n]+", "");
+				final Object encoder = createInstance(clz, "", true);
+				return bb -> ((String) invokeSilent(encoder, null, "encode", true, "[B", (Object) bb)).replaceAll("[\r\n]+", "");
 			}
-			clz = getClass("org.apache.commons.codec.binary.Base64", null);
-			if (clz != null) {
-				return (String) invokeSilent(null, clz, "encodeBase64String", false, "[B", (Object) bb);
+			final Class<?> codec = getClass("org.apache.commons.codec.binary.Base64", null);
+			if (codec != null) {
+				return bb -> (String) invokeSilent(null, codec, "encodeBase64String", false, "[B", (Object) bb);
 			}
-			clz = getClass("android.util.Base64", null);
-			if (clz != null) {
-				return (String) invokeSilent(null, clz, "encodeToString", false, "[BI", bb, 2); // NO_WRAP
+			final Class<?> android = getClass("android.util.Base64", null);
+			if (android != null) {
+				return bb -> (String) invokeSilent(null, android, "encodeToString", false, "[BI", bb, 2); // NO_WRAP
 			}
-			throw new RuntimeException(new NoSuchMethodException("base64Encode"));
+			return bb -> { throw new RuntimeException(new NoSuchMethodException("base64Encode")); };
 		}
 
 		public static byte[] readStream(InputStream is, boolean close) {
@@ -1671,11 +4590,20 @@ public final class CUrl {
 		}
 
 		public static byte[] readStream(InputStream is, int interruptOnSize, boolean close) {
-			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			return readStream(is, interruptOnSize, close, -1);
+		}
+
+		/**
+		 * @param expectedSize 预期的数据长度，如Content-Length，用于预分配缓冲区，未知时传-1
+		 *  expected length of the data (e.g. Content-Length) to presize the buffer, -1 if unknown
+		 */
+		public static byte[] readStream(InputStream is, int interruptOnSize, boolean close, long expectedSize) {
+			if (interruptOnSize > 0 && expectedSize > interruptOnSize) expectedSize = interruptOnSize;
+			Buffer bos = new Buffer(expectedSize > 0 ? (int) Math.min(expectedSize, MAX_PRESIZE) : 32);
 			int count = 0, c;
 			while ((c = pipeStream(is, bos)) > 0 && (interruptOnSize <= 0 || count < interruptOnSize)) count += c;
 			if (c < 0) count += (c & PIPE_COUNT_MASK);
-			byte[] result = c < 0 && count == 0 ? null : bos.toByteArray();
+			byte[] result = c < 0 && count == 0 ? null : bos.toByteArrayNoCopy();
 			if (close) try {
 				is.close();
 			} catch (Exception ignored) {
@@ -1683,35 +4611,260 @@ public final class CUrl {
 			return result;
 		}
 
+		/** Wrap the stream with a decompressor in case it starts with a gzip or zlib header */
+		public static InputStream decompress(InputStream is) throws IOException {
+			BufferedInputStream bis = new BufferedInputStream(is, BUFFER_SIZE);
+			bis.mark(2);
+			int b0 = bis.read(), b1 = bis.read();
+			bis.reset();
+			if (b0 == 0x1F && b1 == 0x8B) return new GZIPInputStream(bis, BUFFER_SIZE); // gzip
+			if (b0 == 0x78 && (b1 == 0x01 || b1 == 0x5E || b1 == 0x9C || b1 == 0xDA)) return new InflaterInputStream(bis); // deflate/zlib
+			return bis;
+		}
+
+		/** An InputStream which reaches EOF after reading the given number of bytes */
+		public static final class BoundedInputStream extends FilterInputStream {
+			private long remaining;
+
+			public BoundedInputStream(InputStream in, long limit) {
+				super(in);
+				remaining = limit;
+			}
+
+			@Override
+			public int read() throws IOException {
+				if (remaining <= 0) return -1;
+				int b = in.read();
+				if (b >= 0) remaining--;
+				return b;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (remaining <= 0) return -1;
+				int n = in.read(b, off, (int) Math.min(len, remaining));
+				if (n > 0) remaining -= n;
+				return n;
+			}
+
+			@Override
+			public long skip(long n) throws IOException {
+				long skipped = in.skip(Math.min(n, remaining));
+				remaining -= skipped;
+				return skipped;
+			}
+
+			@Override
+			public int available() throws IOException {
+				return (int) Math.min(in.available(), remaining);
+			}
+
+			@Override
+			public boolean markSupported() {
+				return false;
+			}
+		}
+
+		/**
+		 * 统计读取的字节数，按令牌桶限速（--limit-rate），并在速度持续低于下限时中止（--speed-limit/--speed-time）
+		 * Counts the bytes read, throttles the reads with a token bucket (--limit-rate, burst of one second),
+		 * and aborts with {@link LowSpeedException} if the speed stays below --speed-limit for --speed-time seconds.
+		 * While the speed is checked, a read timeout is a sample without data and the read is retried, so a fully stalled
+		 * transfer is aborted too if the read timeout of the socket is not longer than --speed-time.
+		 */
+		public static final class ThrottledInputStream extends FilterInputStream {
+			private final long rate, speedLimit, speedTime;
+			private double tokens;
+			private long count, refilledAt, sampleStart, sampleBytes, slowSince = -1;
+			private boolean timedOut;
+
+			/**
+			 * @param rate 最大速度，字节/秒，0不限速 / maximum bytes per second, 0 for unlimited
+			 * @param speedLimit 速度下限，字节/秒，0不检查 / minimum bytes per second, 0 to disable the check
+			 * @param speedTime 低于下限的最长秒数 / seconds allowed below the speed limit
+			 */
+			public ThrottledInputStream(InputStream in, long rate, long speedLimit, int speedTime) {
+				super(in);
+				this.rate = rate;
+				this.speedLimit = speedLimit;
+				this.speedTime = speedTime * 1000L;
+				refilledAt = sampleStart = System.currentTimeMillis();
+				tokens = rate;
+			}
+
+			public long getCount() {
+				return count;
+			}
+
+			/** @return 是否发生过读取超时，此时数据可能不完整 / whether a read has timed out, the data read may be truncated */
+			public boolean isTimedOut() {
+				return timedOut;
+			}
+
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (len <= 0) return 0;
+				if (rate > 0) len = (int) acquire(len);
+				int n;
+				while (true) {
+					try {
+						n = in.read(b, off, len);
+						break;
+					} catch (SocketTimeoutException e) {
+						if (speedLimit > 0) {
+							checkSpeed(0); // a sample without data, until the transfer is aborted as too slow
+							continue;
+						}
+						timedOut = true;
+						if (rate > 0) tokens += len;
+						throw e;
+					}
+				}
+				if (rate > 0) tokens -= Math.max(n, 0) - len; // return the unused tokens
+				if (n > 0) count += n;
+				checkSpeed(Math.max(n, 0));
+				return n;
+			}
+
+			@Override
+			public long skip(long n) throws IOException {
+				return n <= 0 ? 0 : Math.max(read(new byte[(int) Math.min(n, MIN_PIPE_BUFFER)]), 0);
+			}
+
+			@Override
+			public boolean markSupported() {
+				return false;
+			}
+
+			/** Wait for at least one token, then take the available tokens up to max */
+			private long acquire(int max) throws IOException {
+				while (true) {
+					long now = System.currentTimeMillis();
+					tokens = Math.min(rate, tokens + (now - refilledAt) * rate / 1000d);
+					refilledAt = now;
+					if (tokens >= 1) break;
+					try {
+						Thread.sleep(Math.max(1, (long) ((1 - tokens) * 1000 / rate)));
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException(e.getMessage());
+					}
+				}
+				long granted = (long) Math.min(tokens, max);
+				tokens -= granted;
+				return granted;
+			}
+
+			/** Sample the speed every second, like curl */
+			private void checkSpeed(int n) throws LowSpeedException {
+				if (speedLimit <= 0) return;
+				sampleBytes += n;
+				long now = System.currentTimeMillis(), elapsed = now - sampleStart;
+				if (elapsed < 1000) return;
+				if (sampleBytes * 1000 / elapsed >= speedLimit) {
+					slowSince = -1;
+				} else {
+					if (slowSince < 0) slowSince = sampleStart;
+					if (now - slowSince >= speedTime) throw new LowSpeedException(speedLimit, speedTime / 1000);
+				}
+				sampleStart = now;
+				sampleBytes = 0;
+			}
+		}
+
+		/** 解析字节数，支持K、M、G后缀（1024进制）/ Parse a size with an optional K, M or G suffix (powers of 1024), like curl */
+		public static long parseSize(String s) {
+			s = s.trim();
+			if (s.isEmpty()) throw new IllegalArgumentException("empty size");
+			int shift = ("KMG".indexOf(Character.toUpperCase(s.charAt(s.length() - 1))) + 1) * 10;
+			if (shift > 0) s = s.substring(0, s.length() - 1);
+			return (long) (Double.parseDouble(s) * (1L << shift));
+		}
+
+		public static final OutputStream NULL_OUTPUT = new OutputStream() {
+			@Override public void write(int b) {}
+			@Override public void write(byte[] b, int off, int len) {}
+		};
+
 		public static final int PIPE_COUNT_MASK = 0x7FFFFFFF;
 
 		private static final int BUFFER_SIZE = 10000;
+		private static final int MIN_PIPE_BUFFER = 8 * 1024, MAX_PIPE_BUFFER = 64 * 1024;
+		private static final int MAX_PRESIZE = 16 * 1024 * 1024;
+
+		/**
+		 * Read buffer of pipeStream, reused by the thread. It's doubled (up to 64KB) whenever a read fills it up,
+		 * so fast sources are copied in bigger chunks while slow ones keep the small buffer.
+		 */
+		private static final ThreadLocal<byte[]> pipeBuffer = new ThreadLocal<byte[]>();
 
 		public static int pipeStream(InputStream source, OutputStream destination) {
-			byte[] bb = new byte[BUFFER_SIZE];
+			byte[] bb = pipeBuffer.get();
+			pipeBuffer.set(null); // in case of nested calls, e.g. from the destination stream
+			if (bb == null) bb = new byte[MIN_PIPE_BUFFER];
 			int len, count = 0;
-			do {
-				len = 0;
-				try {
-					len = source.read(bb);
-				} catch (SocketTimeoutException e) { // no data, but the socket connection is still alive
-				} catch (SocketException e) { // EOF or socket disconnected
-					len = -1;
-				} catch (IOException e) { // unexpected exceptions
-					throw new RuntimeException(e);
-				}
-				if (len > 0) {
+			boolean full;
+			try {
+				do {
+					len = 0;
 					try {
-						destination.write(bb, 0, len);
-					} catch (IOException e) { // unexpected exceptions while writing
+						len = source.read(bb);
+					} catch (LowSpeedException e) { // transfer too slow, abort
+						throw new RuntimeException(e);
+					} catch (SocketTimeoutException e) { // no data, but the socket connection is still alive
+					} catch (SocketException e) { // EOF or socket disconnected
+						len = -1;
+					} catch (IOException e) { // unexpected exceptions
 						throw new RuntimeException(e);
 					}
-					count += len;
-				}
-			} while (len == BUFFER_SIZE);
+					if (len > 0) {
+						try {
+							destination.write(bb, 0, len);
+						} catch (IOException e) { // unexpected exceptions while writing
+							throw new RuntimeException(e);
+						}
+						count += len;
+					}
+					if ((full = len == bb.length) && bb.length < MAX_PIPE_BUFFER) bb = new byte[bb.length * 2];
+				} while (full);
+			} finally {
+				pipeBuffer.set(bb);
+			}
 			return len < 0 ? (0x80000000 | count) : count; // len < 0 -> EOF reached
 		}
 
+		/** ByteArrayOutputStream which returns its buffer without copying if it's exactly filled up */
+		static final class Buffer extends ByteArrayOutputStream {
+			Buffer(int size) { super(size); }
+			byte[] toByteArrayNoCopy() { return count == buf.length ? buf : toByteArray(); }
+		}
+
+		/**
+		 * 立即释放内存映射，而非等到GC，否则在Windows上映射的文件不能被替换或删除。不支持时忽略
+		 * Release the mapping now rather than at GC, otherwise the file can't be replaced or deleted on Windows.
+		 * The buffer must not be accessed afterwards. Ignored if not supported by the JVM.
+		 */
+		public static void unmap(MappedByteBuffer buf) {
+			try {
+				Class<?> unsafe = Class.forName("sun.misc.Unsafe");
+				try {
+					unsafe.getMethod("invokeCleaner", ByteBuffer.class).invoke(getField(null, unsafe, "theUnsafe", null, true), buf); // Java 9+
+				} catch (NoSuchMethodException e) { // Java 8
+					Method cleaner = buf.getClass().getMethod("cleaner");
+					cleaner.setAccessible(true);
+					Object c = cleaner.invoke(buf);
+					if (c != null) c.getClass().getMethod("clean").invoke(c);
+				}
+			} catch (Exception ignored) { // released at GC
+			}
+		}
+
 		public static void mkdirs(File dir) {
 			File parent = dir.getAbsoluteFile();
 			List<File> mkdir = new ArrayList<File>();
@@ -1838,12 +4991,14 @@ public final class CUrl {
 			return sb.toString();
 		}
 
-		private static final Map<Class<?>, Map<String, List<MemberInfo>>> mapClassMembers = new HashMap<Class<?>, Map<String, List<MemberInfo>>>();
-
-		private static synchronized List<MemberInfo> getMembers(Class<?> cls, String name) {
-			if (!mapClassMembers.containsKey(cls)) {
-				Map<String, List<MemberInfo>> map;
-				mapClassMembers.put(cls, map = new LinkedHashMap<String, List<MemberInfo>>());
+		/**
+		 * Member index of each class, built once per class and then read without locking.
+		 * The index is stored with the class itself, so it does not keep the class loader alive.
+		 */
+		private static final ClassValue<Map<String, List<MemberInfo>>> classMembers = new ClassValue<Map<String, List<MemberInfo>>>() {
+			@Override
+			protected Map<String, List<MemberInfo>> computeValue(Class<?> cls) {
+				Map<String, List<MemberInfo>> map = new HashMap<String, List<MemberInfo>>();
 				Class<?> clss = cls;
 				while (clss != null && !Object.class.equals(clss)) {
 					for (Constructor<?> c : safeArray(clss.getDeclaredConstructors(), Constructor.class)) {
@@ -1859,14 +5014,19 @@ public final class CUrl {
 					}
 					clss = clss.getSuperclass();
 				}
+				for (Map.Entry<String, List<MemberInfo>> en: map.entrySet()) en.setValue(Collections.unmodifiableList(en.getValue()));
+				return Collections.unmodifiableMap(map);
 			}
-			return mapMapGet(mapClassMembers, cls, name, null);
+		};
+
+		private static List<MemberInfo> getMembers(Class<?> cls, String name) {
+			return classMembers.get(cls).get(name);
 		}
 
 		private static class MemberInfo {
-			String signature; // null for field
-			int numArgs; // -1 for field
-			Member member;
+			final String signature; // null for field
+			final int numArgs; // -1 for field
+			final Member member;
 
 			MemberInfo(String sign, int num, Member member) {
 				signature = sign;
@@ -0,0 +1,198 @@
+package com.roxstudio.utils;
+
+import java.net.HttpCookie;
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.function.BiConsumer;
+
+/**
+ * 批量并行执行多个CUrl实例，限制总并发数及每个主机的并发数
+ * Run many CUrl instances in parallel with bounded global and per-host concurrency.
+ * Requests to the same host:port are started in submission order, results are returned in submission order.
+ * Cookies of the thread calling exec are copied to every request, same as {@link CUrl#execAsync(CUrl.Resolver, Object, Executor)}.
+ * Note: do not add the same CUrl instance twice, a CUrl instance can not execute more than one request at the same time.
+ */
+@SuppressWarnings({"WeakerAccess", "unused", "UnusedReturnValue"})
+public final class CUrlBatch {
+
+	private final List<CUrl> curls = new ArrayList<CUrl>();
+	private int maxConcurrency = 16;
+	private int maxPerHost = 4;
+	private Executor executor;
+
+	public CUrlBatch add(CUrl curl) {
+		curls.add(curl);
+		return this;
+	}
+
+	public CUrlBatch addAll(Collection<CUrl> curls) {
+		this.curls.addAll(curls);
+		return this;
+	}
+
+	/**
+	 * 以给定的参数创建CUrl实例并添加
+	 * Add a CUrl instance created from the given options
+	 * @param options e.g. add("-H", "X-Requested-With: XMLHttpRequest", "--url", "http://...")
+	 */
+	public CUrlBatch add(String... options) {
+		return add(new CUrl().opt(options));
+	}
+
+	/**
+	 * 以参数模板及给定的URL列表创建多个CUrl实例并添加
+	 * Add one CUrl instance for each url, all instances share the same template options
+	 */
+	public CUrlBatch addAll(String[] templateOptions, Collection<String> urls) {
+		for (String url: urls) add(new CUrl().opt(templateOptions).url(url));
+		return this;
+	}
+
+	/** Maximum number of requests running at the same time, default 16 */
+	public CUrlBatch maxConcurrency(int maxConcurrency) {
+		if (maxConcurrency <= 0) throw new IllegalArgumentException("maxConcurrency: " + maxConcurrency);
+		this.maxConcurrency = maxConcurrency;
+		return this;
+	}
+
+	/** Maximum number of requests running at the same time for each host:port, default 4 */
+	public CUrlBatch maxPerHost(int maxPerHost) {
+		if (maxPerHost <= 0) throw new IllegalArgumentException("maxPerHost: " + maxPerHost);
+		this.maxPerHost = maxPerHost;
+		return this;
+	}
+
+	/** Executor to run the requests, default to {@link CUrl#getDefaultExecutor()} */
+	public CUrlBatch executor(Executor executor) {
+		this.executor = executor;
+		return this;
+	}
+
+	public List<CUrl> getCUrls() {
+		return curls;
+	}
+
+	/**
+	 * 执行所有请求，阻塞直到全部完成
+	 * Execute all requests and wait until all of them are done
+	 * @param resolver 输出解析器
+	 * @param fallback 默认返回值
+	 * @return 执行结果，与添加顺序一致
+	 */
+	public <T> List<Result<T>> exec(CUrl.Resolver<T> resolver, T fallback) throws InterruptedException {
+		Run<T> run = new Run<T>(resolver, fallback, executor != null ? executor : CUrl.getDefaultExecutor());
+		run.dispatch();
+		run.done.await();
+		return Arrays.asList(run.results);
+	}
+
+	/** Get host:port of the URL of the compiled plan, "" if the options are invalid */
+	private static String hostOf(CUrl.Plan plan) {
+		try {
+			URL u = new URL(plan.getUrl());
+			return u.getHost().toLowerCase() + ":" + (u.getPort() >= 0 ? u.getPort() : u.getDefaultPort());
+		} catch (Exception e) {
+			return ""; // invalid URL, exec will report the error
+		}
+	}
+
+	private final class Run<T> {
+		final CUrl.Resolver<T> resolver;
+		final T fallback;
+		final Executor executor;
+		final List<HttpCookie> cookies = CUrl.snapshotCookies();
+		final Result<T>[] results;
+		/** compiled once, as compiling reads one-shot inputs like "-d @-", null if the options are invalid */
+		final CUrl.Plan[] plans;
+		final CountDownLatch done;
+		/** pending indexes grouped by host, hosts are visited in the order of first submission */
+		final Map<String, ArrayDeque<Integer>> pending = new LinkedHashMap<String, ArrayDeque<Integer>>();
+		final Map<String, Integer> runningPerHost = new HashMap<String, Integer>();
+		int running = 0;
+
+		@SuppressWarnings("unchecked")
+		Run(CUrl.Resolver<T> resolver, T fallback, Executor executor) {
+			this.resolver = resolver;
+			this.fallback = fallback;
+			this.executor = executor;
+			results = (Result<T>[]) new Result<?>[curls.size()];
+			plans = new CUrl.Plan[results.length];
+			done = new CountDownLatch(results.length);
+			for (int i = 0; i < results.length; i++) {
+				String host = "";
+				try {
+					host = hostOf(plans[i] = curls.get(i).compile());
+				} catch (IllegalArgumentException ignored) {} // exec will report the error
+				ArrayDeque<Integer> q = pending.get(host);
+				if (q == null) pending.put(host, q = new ArrayDeque<Integer>());
+				q.add(i);
+			}
+		}
+
+		/** Start as many pending requests as the limits allow */
+		void dispatch() {
+			List<Integer> starting = new ArrayList<Integer>();
+			List<String> hosts = new ArrayList<String>();
+			synchronized (this) {
+				for (Iterator<Map.Entry<String, ArrayDeque<Integer>>> it = pending.entrySet().iterator(); it.hasNext() && running < maxConcurrency;) {
+					Map.Entry<String, ArrayDeque<Integer>> en = it.next();
+					String host = en.getKey();
+					int count = CUrl.Util.mapGet(runningPerHost, host, 0);
+					for (; count < maxPerHost && running < maxConcurrency && !en.getValue().isEmpty(); count++, running++) {
+						starting.add(en.getValue().poll());
+						hosts.add(host);
+					}
+					runningPerHost.put(host, count);
+					if (en.getValue().isEmpty()) it.remove();
+				}
+			}
+			for (int i = 0; i < starting.size(); i++) start(starting.get(i), hosts.get(i));
+		}
+
+		void start(final int idx, final String host) {
+			final CUrl curl = curls.get(idx);
+			curl.execAsync(plans[idx], resolver, fallback, executor, cookies).whenComplete(new BiConsumer<T, Throwable>() {
+				public void accept(T value, Throwable error) {
+					results[idx] = new Result<T>(curl, value, error);
+					synchronized (Run.this) {
+						running--;
+						runningPerHost.put(host, runningPerHost.get(host) - 1);
+					}
+					dispatch();
+					done.countDown();
+				}
+			});
+		}
+	}
+
+	public static final class Result<T> {
+		private final CUrl curl;
+		private final int httpCode;
+		private final long execTime;
+		private final T value;
+		private final Throwable error;
+
+		Result(CUrl curl, T value, Throwable error) {
+			this.curl = curl;
+			this.httpCode = curl.getHttpCode();
+			this.execTime = curl.getExecTime();
+			this.value = value;
+			this.error = error;
+		}
+
+		public CUrl getCUrl() { return curl; }
+		public int getHttpCode() { return httpCode; }
+		public long getExecTime() { return execTime; }
+		/** The resolved stdout, or fallback */
+		public T getValue() { return value; }
+		/** Exception thrown outside the request itself, e.g. rejected by executor, normally null */
+		public Throwable getError() { return error; }
+
+		public String toString() {
+			return "Result<" + httpCode + "," + execTime + "ms," + (error != null ? error : value) + ">";
+		}
+	}
+
+}
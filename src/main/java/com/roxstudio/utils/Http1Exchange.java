@@ -0,0 +1,450 @@
+package com.roxstudio.utils;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * 基于Socket的HTTP/1.1请求，连接由{@link CUrl.ConnectionPool}管理。支持直连、HTTP代理（HTTPS经CONNECT隧道）及SOCKS代理。
+ * HTTP/1.1 exchange over a plain or TLS socket leased from {@link CUrl.ConnectionPool}. Supports direct connections,
+ * HTTP proxies (HTTPS is tunneled with CONNECT) and SOCKS proxies. The connection is returned to the pool when the response
+ * body is read up to its end, or drained on close (see {@link CUrl.ConnectionPool#drainLimit(int)}), otherwise it's closed.
+ * Cookies are applied with the cookie handler of the request.
+ */
+final class Http1Exchange implements CUrl.Exchange {
+
+	private static final int MAX_LINE = 64 * 1024;
+	private static final Set<String> IDEMPOTENT = new HashSet<String>(Arrays.asList("GET", "HEAD", "OPTIONS", "PUT", "DELETE", "TRACE"));
+
+	/** A socket kept by the pool */
+	static final class Connection {
+		final Object route;
+		final Socket socket;
+		final InputStream in;
+		final OutputStream out;
+		final long createdAt = System.currentTimeMillis();
+		long idleSince;
+
+		Connection(Object route, Socket socket) throws IOException {
+			this.route = route;
+			this.socket = socket;
+			in = new BufferedInputStream(socket.getInputStream(), 8 * 1024);
+			out = new BufferedOutputStream(socket.getOutputStream(), 8 * 1024);
+		}
+
+		/** An idle connection is stale if the server closed it, or sent anything unexpected */
+		boolean isStale() {
+			if (socket.isClosed() || socket.isInputShutdown()) return true;
+			try {
+				int timeout = socket.getSoTimeout();
+				socket.setSoTimeout(1);
+				try {
+					in.read();
+					return true; // EOF, or unexpected data
+				} catch (SocketTimeoutException e) {
+					return false;
+				} finally {
+					socket.setSoTimeout(timeout);
+				}
+			} catch (IOException e) {
+				return true;
+			}
+		}
+
+		void close() {
+			try { socket.close(); } catch (Exception ignored) {}
+		}
+	}
+
+	private final CUrl.ConnectionPool pool;
+	private final Connection con;
+	private final URL url;
+	private final int code;
+	private final CUrl.Headers headers;
+	private final ResponseBody body;
+
+	private Http1Exchange(CUrl.ConnectionPool pool, Connection con, URL url, int code, CUrl.Headers headers, boolean hasBody, boolean reusable) throws IOException {
+		this.pool = pool;
+		this.con = con;
+		this.url = url;
+		this.code = code;
+		this.headers = headers;
+		String te = headers.getFirst("Transfer-Encoding"), cl = headers.getFirst("Content-Length");
+		long length = !hasBody ? 0 : te != null && te.toLowerCase().contains("chunked") ? -1 : cl != null ? Long.parseLong(cl.trim()) : -2;
+		body = new ResponseBody(length, reusable && length > -2); // no framing, read until closed
+		if (length == 0) body.done(true);
+	}
+
+	static CUrl.Exchange open(CUrl.ConnectionPool pool, CUrl.Request req) throws Exception {
+		URL url = req.getUrl();
+		boolean https = "https".equals(url.getProtocol());
+		Proxy proxy = req.getProxy();
+		Object route = Arrays.asList(url.getProtocol(), url.getHost(), port(url), proxy, https ? req.getSslSocketFactory() : null, req.isInsecure());
+		boolean keepAlive = !"close".equalsIgnoreCase(header(req.getHeaders(), "Connection"));
+		// a one-shot body may be partially consumed, and a request which was sent may have been processed by the server
+		boolean replayable = req.getBody() == null || req.getBody() instanceof CUrl.BytesBody;
+		boolean idempotent = IDEMPOTENT.contains(req.getMethod());
+		for (int tries = 0; ; tries++) {
+			Connection con = pool.lease(route, req.getConnectTimeout());
+			boolean reused = con != null;
+			if (!reused) {
+				try {
+					con = connect(route, req);
+				} catch (Exception e) {
+					pool.release(null, route, false);
+					throw e;
+				}
+			} else {
+				req.getTiming().markConnect();
+				if (https) req.getTiming().markAppConnect();
+			}
+			req.onAbort(con::close); // --max-time, e.g. a slow upload
+			boolean sent = false;
+			try {
+				con.socket.setSoTimeout(req.getReadTimeout());
+				writeRequest(con, req, https && proxy.type() == Proxy.Type.HTTP);
+				sent = true;
+				return readResponse(pool, con, req, keepAlive);
+			} catch (Exception e) {
+				pool.release(con, route, false);
+				if (reused && tries == 0 && e instanceof IOException && !(e instanceof SocketTimeoutException)
+						&& replayable && (!sent || idempotent)) continue; // stale, retry once with a new connection
+				if (!sent && req.getBody() != null) throw new CUrl.Recoverable(e, -1); // same as HttpURLConnection
+				throw e;
+			}
+		}
+	}
+
+	private static int port(URL url) {
+		return url.getPort() >= 0 ? url.getPort() : url.getDefaultPort();
+	}
+
+	private static String header(Map<String, String> headers, String name) {
+		for (Map.Entry<String, String> h: headers.entrySet()) {
+			if (h.getKey().equalsIgnoreCase(name)) return h.getValue();
+		}
+		return null;
+	}
+
+	private static Connection connect(Object route, CUrl.Request req) throws IOException {
+		URL url = req.getUrl();
+		String host = url.getHost();
+		int port = port(url);
+		Proxy proxy = req.getProxy();
+		Socket socket = connectFirstHop(req, host, port);
+		try {
+			req.getTiming().markConnect();
+			if ("https".equals(url.getProtocol())) {
+				if (proxy.type() == Proxy.Type.HTTP) tunnel(socket, host + ":" + port, header(req.getHeaders(), "Proxy-Authorization"));
+				SSLSocketFactory factory = req.getSslSocketFactory() != null ? req.getSslSocketFactory() : (SSLSocketFactory) SSLSocketFactory.getDefault();
+				SSLSocket ssl = (SSLSocket) factory.createSocket(socket, host, port, true);
+				if (!req.isInsecure()) {
+					SSLParameters params = ssl.getSSLParameters();
+					params.setEndpointIdentificationAlgorithm("HTTPS");
+					ssl.setSSLParameters(params);
+				}
+				ssl.startHandshake();
+				req.getTiming().markAppConnect();
+				socket = ssl;
+			}
+			return new Connection(route, socket);
+		} catch (IOException e) {
+			try { socket.close(); } catch (Exception ignored) {}
+			throw e;
+		}
+	}
+
+	/** Connect to the proxy or the host, trying the resolved addresses in order */
+	private static Socket connectFirstHop(CUrl.Request req, String host, int port) throws IOException {
+		Proxy proxy = req.getProxy();
+		InetAddress[] addresses = req.getAddresses();
+		int hopPort = proxy.type() == Proxy.Type.DIRECT ? port : ((InetSocketAddress) proxy.address()).getPort();
+		if (addresses == null || addresses.length == 0) {
+			InetSocketAddress hop = proxy.type() == Proxy.Type.DIRECT ? new InetSocketAddress(host, port) : (InetSocketAddress) proxy.address();
+			addresses = new InetAddress[] { hop.isUnresolved() ? InetAddress.getByName(hop.getHostString()) : hop.getAddress() };
+		}
+		IOException last = null;
+		for (InetAddress address: addresses) {
+			InetSocketAddress hop = new InetSocketAddress(address, hopPort);
+			Socket socket = proxy.type() == Proxy.Type.SOCKS ? new Socket(new Proxy(Proxy.Type.SOCKS, hop)) : new Socket();
+			try {
+				socket.setTcpNoDelay(true);
+				socket.setSoTimeout(req.getReadTimeout());
+				socket.connect(proxy.type() == Proxy.Type.SOCKS ? InetSocketAddress.createUnresolved(host, port) // resolved by the proxy
+						: hop, req.getConnectTimeout());
+				return socket;
+			} catch (SocketTimeoutException e) { // the connect timeout is not multiplied by the number of addresses
+				try { socket.close(); } catch (Exception ignored) {}
+				throw e;
+			} catch (IOException e) {
+				try { socket.close(); } catch (Exception ignored) {}
+				last = e;
+			}
+		}
+		throw last;
+	}
+
+	private static void tunnel(Socket socket, String authority, String proxyAuth) throws IOException {
+		OutputStream out = socket.getOutputStream();
+		out.write(("CONNECT " + authority + " HTTP/1.1\r\nHost: " + authority + "\r\n"
+				+ (proxyAuth != null ? "Proxy-Authorization: " + proxyAuth + "\r\n" : "") + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+		out.flush();
+		InputStream in = socket.getInputStream(); // unbuffered, not to read ahead into the TLS handshake
+		String status = readLine(in);
+		String line;
+		while ((line = readLine(in)) != null && line.length() > 0); // skip the headers
+		if (status == null || !status.matches("HTTP/1\\.[01] 200\\b.*")) {
+			throw new IOException("Unable to tunnel through proxy. Proxy returns \"" + status + "\"");
+		}
+	}
+
+	private static void writeRequest(Connection con, CUrl.Request req, boolean tunneled) throws IOException {
+		URL url = req.getUrl();
+		String target = req.getProxy().type() == Proxy.Type.HTTP && !tunneled ? new URL(url, url.getFile()).toString() // absolute-form
+				: url.getFile().length() > 0 ? url.getFile() : "/";
+		StringBuilder sb = new StringBuilder(256).append(req.getMethod()).append(' ').append(target).append(" HTTP/1.1\r\n");
+		Map<String, String> headers = req.getHeaders();
+		if (header(headers, "Host") == null) {
+			sb.append("Host: ").append(url.getHost());
+			if (url.getPort() >= 0 && url.getPort() != url.getDefaultPort()) sb.append(':').append(url.getPort());
+			sb.append("\r\n");
+		}
+		for (Map.Entry<String, String> h: headers.entrySet()) {
+			if (tunneled && "Proxy-Authorization".equalsIgnoreCase(h.getKey())) continue; // sent with CONNECT only
+			sb.append(h.getKey()).append(": ").append(h.getValue()).append("\r\n");
+		}
+		CookieHandler cookieHandler = req.getCookieHandler();
+		if (cookieHandler != null) {
+			Map<String, List<String>> cookies = cookieHandler.get(toUri(url), Collections.<String, List<String>>emptyMap());
+			for (Map.Entry<String, List<String>> en: cookies.entrySet()) {
+				if (en.getValue().isEmpty()) continue;
+				sb.append(en.getKey()).append(": ");
+				for (int i = 0; i < en.getValue().size(); i++) sb.append(i > 0 ? "; " : "").append(en.getValue().get(i));
+				sb.append("\r\n");
+			}
+		}
+		CUrl.Body body = req.getBody();
+		long length = body != null ? body.length() : -1;
+		if (body != null) sb.append(length >= 0 ? "Content-Length: " + length : "Transfer-Encoding: chunked").append("\r\n");
+		sb.append("\r\n");
+		con.out.write(sb.toString().getBytes(StandardCharsets.ISO_8859_1));
+		if (body != null) {
+			if (length >= 0) {
+				body.writeTo(con.out);
+			} else {
+				ChunkedOutputStream chunked = new ChunkedOutputStream(con.out);
+				body.writeTo(chunked);
+				chunked.finish();
+			}
+		}
+		con.out.flush();
+	}
+
+	private static Http1Exchange readResponse(CUrl.ConnectionPool pool, Connection con, CUrl.Request req, boolean keepAlive) throws IOException {
+		String status;
+		CUrl.Headers headers;
+		int code;
+		do { // skip interim responses, e.g. 100 Continue
+			status = readLine(con.in);
+			if (status == null) throw new SocketException("Unexpected end of file from server");
+			if (!status.startsWith("HTTP/") || status.length() < 12) throw new ProtocolException("Invalid status line: " + status);
+			code = Integer.parseInt(status.substring(9, 12));
+			headers = new CUrl.Headers();
+			headers.add(null, status);
+			String line;
+			while ((line = readLine(con.in)) != null && line.length() > 0) {
+				int idx = line.indexOf(':');
+				if (idx > 0) headers.add(line.substring(0, idx).trim(), line.substring(idx + 1).trim());
+			}
+		} while (code >= 100 && code < 200);
+		CookieHandler cookieHandler = req.getCookieHandler();
+		if (cookieHandler != null) {
+			Map<String, List<String>> map = new HashMap<String, List<String>>();
+			for (String name: new String[] { "Set-Cookie", "Set-Cookie2" }) {
+				List<String> values = headers.getAll(name);
+				if (!values.isEmpty()) map.put(name, values);
+			}
+			if (!map.isEmpty()) cookieHandler.put(toUri(req.getUrl()), map);
+		}
+		String connection = headers.getFirst("Connection");
+		boolean reusable = keepAlive && (status.startsWith("HTTP/1.1") ? !"close".equalsIgnoreCase(connection) : "keep-alive".equalsIgnoreCase(connection));
+		boolean hasBody = !"HEAD".equals(req.getMethod()) && code != 204 && code != 304;
+		return new Http1Exchange(pool, con, req.getUrl(), code, headers, hasBody, reusable);
+	}
+
+	private static URI toUri(URL url) throws IOException {
+		try {
+			return url.toURI();
+		} catch (URISyntaxException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/** @return the line without CRLF, or null on EOF */
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder sb = new StringBuilder(64);
+		int c;
+		while ((c = in.read()) != '\n') {
+			if (c < 0) return sb.length() > 0 ? sb.toString() : null;
+			if (sb.length() >= MAX_LINE) throw new ProtocolException("Line too long");
+			sb.append((char) c);
+		}
+		int len = sb.length();
+		if (len > 0 && sb.charAt(len - 1) == '\r') sb.setLength(len - 1);
+		return sb.toString();
+	}
+
+	public int getResponseCode() {
+		return code;
+	}
+
+	public CUrl.Headers getResponseHeaders() {
+		return headers;
+	}
+
+	public String getHeaderField(String name) {
+		return headers.getFirst(name);
+	}
+
+	public InputStream getInputStream() throws IOException {
+		if (code >= 400) { // same as HttpURLConnection
+			if (code == 404 || code == 410) throw new FileNotFoundException(url.toString());
+			throw new IOException("Server returned HTTP response code: " + code + " for URL: " + url);
+		}
+		return body;
+	}
+
+	public InputStream getErrorStream() {
+		return code >= 400 ? body : null;
+	}
+
+	public void cancel() {
+		body.cancelled = true;
+		con.close();
+		body.done(false);
+	}
+
+	public void release() {
+		try { body.close(); } catch (IOException ignored) {}
+	}
+
+	/** Response body of the given length (-1: chunked, -2: until the connection is closed), which returns the connection at EOF */
+	private final class ResponseBody extends InputStream {
+		private long remaining; // of the body, or of the current chunk if chunked
+		private final boolean chunked, reusable;
+		private boolean eof, released;
+		volatile boolean cancelled;
+
+		ResponseBody(long length, boolean reusable) {
+			this.chunked = length == -1;
+			this.remaining = chunked ? 0 : length;
+			this.reusable = reusable;
+			eof = length == 0;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (released && !eof) throw new IOException("Stream closed");
+			if (eof || len == 0) return eof ? -1 : 0;
+			try {
+				if (chunked && remaining == 0 && !nextChunk()) return -1;
+				int n = con.in.read(b, off, remaining >= 0 ? (int) Math.min(len, remaining) : len);
+				if (n < 0) {
+					if (remaining != -2) throw new IOException("Premature EOF");
+					done(false); // read until closed
+					eof = true;
+					return -1;
+				}
+				if (remaining >= 0) remaining -= n;
+				if (!chunked && remaining == 0) done(true);
+				return n;
+			} catch (SocketException e) {
+				if (cancelled) throw new IOException("Stream closed", e); // not EOF
+				throw e;
+			}
+		}
+
+		/** @return false at the last chunk */
+		private boolean nextChunk() throws IOException {
+			String line = readLine(con.in);
+			if (line != null && line.length() == 0) line = readLine(con.in); // CRLF after the previous chunk
+			if (line == null) throw new IOException("Premature EOF");
+			int semi = line.indexOf(';');
+			remaining = Long.parseLong((semi >= 0 ? line.substring(0, semi) : line).trim(), 16);
+			if (remaining > 0) return true;
+			while ((line = readLine(con.in)) != null && line.length() > 0); // trailers
+			done(true);
+			return false;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return eof || released ? 0 : (int) Math.min(con.in.available(), remaining >= 0 ? remaining : Integer.MAX_VALUE);
+		}
+
+		/** Drains the rest of the body up to the drain limit of the pool, so the connection can be reused */
+		@Override
+		public void close() throws IOException {
+			if (released) return;
+			long limit = reusable ? pool.getDrainLimit() : 0;
+			if (limit > 0 && !cancelled) {
+				byte[] bb = new byte[8 * 1024];
+				try {
+					for (long drained = 0; !released && drained <= limit; ) {
+						int n = read(bb, 0, bb.length);
+						if (n < 0) break;
+						drained += n;
+					}
+				} catch (IOException ignored) {}
+			}
+			done(false);
+		}
+
+		/** Returns the connection to the pool, or closes it */
+		synchronized void done(boolean complete) {
+			if (complete) eof = true;
+			if (released) return;
+			released = true;
+			pool.release(con, con.route, complete && reusable && !cancelled);
+		}
+	}
+
+	/** Chunked transfer encoding of a request body of unknown length */
+	private static final class ChunkedOutputStream extends FilterOutputStream {
+		ChunkedOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (len == 0) return; // a zero-size chunk is the last chunk
+			out.write((Integer.toHexString(len) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+			out.write(b, off, len);
+			out.write(CRLF);
+		}
+
+		void finish() throws IOException {
+			out.write("0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+		}
+
+		@Override
+		public void close() {} // the socket stays open
+
+		private static final byte[] CRLF = { '\r', '\n' };
+	}
+}
@@ -0,0 +1,159 @@
+package com.roxstudio.utils;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.net.CookieHandler;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * 基于java.net.http.HttpClient的传输层（需要JDK 11+），由"--http2"选项启用。同一主机的并发请求在少量HTTP/2连接上多路复用，
+ * 服务器不支持h2时自动使用HTTP/1.1。每个HttpClient维护自己的连接池，因此按代理、连接超时及SSLContext缓存。
+ * Transport based on java.net.http.HttpClient (JDK 11+), selected by "--http2". Concurrent requests to the same host are
+ * multiplexed over a few HTTP/2 connections, it falls back to HTTP/1.1 if h2 is not supported by the server.
+ * Every HttpClient keeps its own connection pool, so the clients are cached per proxy, connect timeout and SSLContext.
+ * Cookies are applied explicitly with the cookie handler of the request, in the calling thread.
+ * This class is loaded reflectively by {@link CUrl#getHttp2Transport()}, so CUrl still runs on JDK 8.
+ */
+final class HttpClientTransport implements CUrl.Transport {
+
+	/** Headers set by HttpClient itself, it refuses to send them */
+	private static final Set<String> RESTRICTED_HEADERS = new HashSet<String>(Arrays.asList(
+			"connection", "content-length", "expect", "host", "upgrade"));
+
+	private final ConcurrentHashMap<List<Object>, HttpClient> clients = new ConcurrentHashMap<List<Object>, HttpClient>();
+
+	public CUrl.Exchange open(CUrl.Request req) throws Exception {
+		final URI uri = req.getUrl().toURI();
+		HttpRequest.Builder rb = HttpRequest.newBuilder(uri);
+		if (req.getReadTimeout() > 0) rb.timeout(Duration.ofMillis(req.getReadTimeout()));
+		for (Map.Entry<String, String> h: req.getHeaders().entrySet()) {
+			if (!RESTRICTED_HEADERS.contains(h.getKey().toLowerCase())) rb.header(h.getKey(), h.getValue());
+		}
+		final CookieHandler cookieHandler = req.getCookieHandler();
+		if (cookieHandler != null) {
+			List<String> cookies = new ArrayList<String>();
+			for (List<String> ll: cookieHandler.get(uri, new HashMap<String, List<String>>()).values()) cookies.addAll(ll);
+			if (cookies.size() > 0) rb.header("Cookie", String.join("; ", cookies));
+		}
+		final CUrl.Body body = req.getBody();
+		HttpRequest.BodyPublisher publisher = HttpRequest.BodyPublishers.noBody();
+		if (body != null) {
+			long length = body.length();
+			HttpRequest.BodyPublisher stream = HttpRequest.BodyPublishers.ofInputStream(() -> {
+				try { return body.openStream(); } catch (IOException e) { throw new UncheckedIOException(e); }
+			});
+			if (length != 0) publisher = length > 0 ? HttpRequest.BodyPublishers.fromPublisher(stream, length) : stream;
+		}
+		rb.method(req.getMethod(), publisher);
+		final CompletableFuture<HttpResponse<InputStream>> future = client(req).sendAsync(rb.build(), HttpResponse.BodyHandlers.ofInputStream());
+		return new CUrl.Exchange() {
+			private HttpResponse<InputStream> response;
+
+			private HttpResponse<InputStream> response() throws IOException {
+				if (response != null) return response;
+				try {
+					response = future.get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					future.cancel(true);
+					throw new InterruptedIOException(e.getMessage());
+				} catch (CancellationException e) {
+					throw new IOException("request cancelled", e);
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof HttpTimeoutException) { // same as HttpURLConnection, thus can be retried
+						SocketTimeoutException ste = new SocketTimeoutException(cause.getMessage());
+						ste.initCause(cause);
+						throw ste;
+					}
+					if (cause instanceof IOException) throw (IOException) cause;
+					throw new IOException(cause);
+				}
+				if (cookieHandler != null) cookieHandler.put(uri, response.headers().map()); // in the calling thread
+				return response;
+			}
+
+			public int getResponseCode() throws IOException {
+				return response().statusCode();
+			}
+
+			public CUrl.Headers getResponseHeaders() {
+				CUrl.Headers headers = new CUrl.Headers();
+				try {
+					HttpResponse<InputStream> r = response();
+					headers.add(null, (r.version() == HttpClient.Version.HTTP_2 ? "HTTP/2 " : "HTTP/1.1 ") + r.statusCode());
+					for (Map.Entry<String, List<String>> en: r.headers().map().entrySet()) {
+						for (String v: en.getValue()) headers.add(en.getKey(), v);
+					}
+				} catch (IOException ignored) {}
+				return headers;
+			}
+
+			public String getHeaderField(String name) {
+				try { return response().headers().firstValue(name).orElse(null); } catch (IOException e) { return null; }
+			}
+
+			public InputStream getInputStream() throws IOException {
+				int code = getResponseCode();
+				if (code >= 400) { // same as HttpURLConnection
+					if (code == 404 || code == 410) throw new FileNotFoundException(uri.toString());
+					throw new IOException("Server returned HTTP response code: " + code + " for URL: " + uri);
+				}
+				return response.body();
+			}
+
+			public InputStream getErrorStream() {
+				try { return getResponseCode() >= 400 ? response.body() : null; } catch (IOException e) { return null; }
+			}
+
+			public void cancel() {
+				future.cancel(true);
+				if (response != null) try { response.body().close(); } catch (Exception ignored) {}
+			}
+		};
+	}
+
+	private HttpClient client(CUrl.Request req) {
+		final Proxy proxy = req.getProxy();
+		// the request timeout also limits connecting, a longer connect timeout (e.g. the remaining time of --max-time) is redundant
+		int connectTimeout = req.getReadTimeout() > 0 && req.getConnectTimeout() >= req.getReadTimeout() ? 0 : req.getConnectTimeout();
+		List<Object> key = Arrays.<Object>asList(proxy, connectTimeout, req.getSslContext());
+		HttpClient client = clients.get(key);
+		if (client == null) {
+			HttpClient.Builder cb = HttpClient.newBuilder()
+					.version(HttpClient.Version.HTTP_2)
+					.followRedirects(HttpClient.Redirect.NEVER); // handled by CUrl
+			if (proxy.type() == Proxy.Type.HTTP) {
+				InetSocketAddress addr = (InetSocketAddress) proxy.address();
+				if (addr.isUnresolved() && req.getAddresses() != null && req.getAddresses().length > 0) {
+					addr = new InetSocketAddress(req.getAddresses()[0], addr.getPort()); // resolved by CUrl, maybe from the DNS cache
+				}
+				cb.proxy(ProxySelector.of(addr));
+			}
+			else cb.proxy(HttpClient.Builder.NO_PROXY);
+			if (connectTimeout > 0) cb.connectTimeout(Duration.ofMillis(connectTimeout));
+			if (req.getSslContext() != null) cb.sslContext(req.getSslContext());
+			HttpClient prev = clients.putIfAbsent(key, client = cb.build());
+			if (prev != null) client = prev;
+		}
+		return client;
+	}
+
+}
@@ -3,16 +3,43 @@ package com.roxstudio.utils;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
 import org.junit.Test;
 
+import javax.net.ssl.X509TrustManager;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpCookie;
+import java.net.InetSocketAddress;
+import java.net.URI;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class CUrlTest {
 
@@ -200,8 +227,709 @@ public class CUrlTest {
         assertTrue(result.contains("unable to find valid certification path to requested target"));
     }
 
+    @Test
+    public void sslContextCachedAcrossExecs() {
+        CUrl.SslContextCache cache = CUrl.getSslContextCache();
+        cache.clear();
+        long hits = cache.getHits(), misses = cache.getMisses();
+        for (int i = 0; i < 3; i++) {
+            new CUrl("https://127.0.0.1:1/").insecure().exec(); // connection refused, but the socket factory is already set
+        }
+        assertEquals(misses + 1, cache.getMisses());
+        assertEquals(hits + 2, cache.getHits());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void compilesForJava8() throws Exception {
+        // the pom targets Java 8 with -source/-target only, which does not catch Java 8 specific errors on a newer JDK
+        javax.tools.JavaCompiler javac = javax.tools.ToolProvider.getSystemJavaCompiler();
+        org.junit.Assume.assumeTrue(javac != null && !System.getProperty("java.specification.version").startsWith("1."));
+        File out = Files.createTempDirectory("release8").toFile();
+        String dir = "src/main/java/com/roxstudio/utils/"; // HttpClientTransport needs JDK 11, it's loaded reflectively
+        java.io.ByteArrayOutputStream err = new java.io.ByteArrayOutputStream();
+        int rc = javac.run(null, null, err, "--release", "8", "-encoding", "UTF-8", "-nowarn", "-d", out.getPath(),
+                dir + "CUrl.java", dir + "CUrlBatch.java", dir + "Http1Exchange.java");
+        assertEquals(new String(err.toByteArray(), StandardCharsets.UTF_8), 0, rc);
+    }
+
+    @Test
+    public void trustStoreReloadedOnlyWhenModified() throws Exception {
+        File jks = File.createTempFile("truststore", ".jks");
+        jks.deleteOnExit();
+        Files.copy(new File("src/test/resources/random_root.jks").toPath(), jks.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        CUrl.TrustStoreRegistry registry = CUrl.getTrustStoreRegistry();
+        long reloads = registry.getReloads();
+        X509TrustManager tm = registry.get(jks.getPath());
+        assertTrue(tm.getAcceptedIssuers().length > 0); // loaded at first use
+        Thread.sleep(1100);
+        tm.getAcceptedIssuers();
+        assertEquals(reloads, registry.getReloads()); // not modified
+        assertTrue(jks.setLastModified(jks.lastModified() - 10000));
+        Thread.sleep(1100);
+        tm.getAcceptedIssuers();
+        assertEquals(reloads + 1, registry.getReloads());
+        assertSame(tm, registry.get(jks.getPath()));
+    }
+
+    @Test
+    public void streamGzippedResponseToFile() throws Exception {
+        File file = File.createTempFile("stream", ".txt");
+        file.deleteOnExit();
+        CUrl curl = new CUrl(local("/gzip"))
+                .output(new CUrl.FileIO(file))
+                .stream(); // decompress & write in chunks without buffering the whole response
+        assertNull(curl.exec()); // resolver is not applied since the output is not stdout
+        assertEquals(200, curl.getHttpCode());
+        assertTrue(Arrays.equals(LARGE_BODY, Files.readAllBytes(file.toPath())));
+        curl = new CUrl(local("/gzip")).stream();
+        assertTrue(Arrays.equals(LARGE_BODY, curl.exec()));
+    }
+
+    @Test
+    public void streamResolver() {
+        CUrl curl = new CUrl(local("/json")).opt("--compressed");
+        // parse JSON directly from the (decompressed) response stream
+        Map<String, Object> json = curl.execStream(jsonStreamResolver, null);
+        assertEquals(200, curl.getHttpCode());
+        assertEquals("Yours Truly", deepGet(json, "slideshow.author"));
+    }
+
+    @Test
+    public void execAsyncWithCallerCookies() throws Exception {
+        HttpCookie cookie = new HttpCookie("caller", "1");
+        cookie.setDomain("127.0.0.1");
+        cookie.setPath("/");
+        CUrl.getCookieStore().add(null, cookie); // cookie of the calling thread
+        try {
+            CompletableFuture<String> future = new CUrl(local("/cookie")).execAsync(CUrl.UTF8, null);
+            assertEquals("caller=1", future.get());
+            new CUrl(local("/setcookie?job=2")).execAsync(CUrl.UTF8, null, Runnable::run).get(); // runs in the calling thread
+            assertEquals(1, CUrl.getCookieStore().getCookies().size()); // the caller's cookies are restored
+            assertEquals("caller", CUrl.getCookieStore().getCookies().get(0).getName());
+        } finally {
+            CUrl.getCookieStore().removeAll();
+        }
+    }
+
+    @Test
+    public void batchWithPerHostLimit() throws Exception {
+        List<String> urls = new ArrayList<String>();
+        for (int i = 0; i < 12; i++) urls.add(local("/slow?" + i));
+        maxConcurrentSlow.set(0);
+        CUrlBatch batch = new CUrlBatch().addAll(new String[] { "-H", "X-Batch: 1" }, urls.subList(0, 6)); // same options, different urls
+        for (String url: urls.subList(6, 12)) batch.add(url, "-e", "http://referer.test/"); // an option value looking like a URL
+        List<CUrlBatch.Result<String>> results = batch
+                .maxConcurrency(8)
+                .maxPerHost(2)
+                .exec(CUrl.UTF8, null);
+        assertEquals(12, results.size());
+        for (int i = 0; i < 12; i++) {
+            assertEquals(200, results.get(i).getHttpCode());
+            assertEquals(Integer.toString(i), results.get(i).getValue()); // in submission order
+        }
+        assertTrue(maxConcurrentSlow.get() <= 2);
+        CUrl upload = new CUrl(local("/upload")).data(new CUrl.WrappedIO("one=shot", "UTF-8"), false);
+        assertEquals("one=shot", new CUrlBatch().add(upload).exec(CUrl.UTF8, null).get(0).getValue()); // the stream is read once
+    }
+
+    @Test
+    public void compiledPlanSharedAcrossThreads() throws Exception {
+        final CUrl.Plan plan = new CUrl(local("/cookie")).header("X-Foo: bar").compile();
+        List<CompletableFuture<String>> futures = new ArrayList<CompletableFuture<String>>();
+        for (int i = 0; i < 4; i++) {
+            final CUrl.Plan bound = plan.bind(local("/slow?" + i), "X-Index: " + i); // only url & headers change
+            futures.add(CompletableFuture.supplyAsync(() -> new CUrl().exec(bound, CUrl.UTF8, null)));
+        }
+        for (int i = 0; i < 4; i++) assertEquals(Integer.toString(i), futures.get(i).get());
+        assertEquals("bar", plan.bind(null, "X-Index: 0").getHeaders().get("X-Foo"));
+        try {
+            new CUrl(local("/")).opt("--no-such-option").compile();
+            fail();
+        } catch (IllegalArgumentException expected) {}
+    }
+
+    @Test
+    public void streamingMultipartUpload() throws Exception {
+        File file = File.createTempFile("curl-upload", ".txt");
+        file.deleteOnExit();
+        Files.write(file.toPath(), LARGE_BODY);
+        CUrl.MemIO inMemFile = new CUrl.MemIO();
+        inMemFile.getOutputStream().write("in-memory file".getBytes());
+        CUrl.MemIO headers = new CUrl.MemIO();
+        CUrl curl = new CUrl(local("/upload")).dumpHeader(headers)
+                .form("formItem", "value")
+                .form("file", inMemFile)
+                .form("image", new CUrl.FileIO(file));
+        String echo = curl.exec(CUrl.ISO_8859_1, null);
+        assertEquals(200, curl.getHttpCode());
+        assertEquals(Integer.toString(echo.length()), headers.parseDumpedHeader().get("X-content-length"));
+        assertTrue(echo.contains("name=\"formItem\"\r\n\r\nvalue\r\n"));
+        assertTrue(echo.contains("\r\n\r\nin-memory file\r\n"));
+        assertTrue(echo.contains(new String(LARGE_BODY, StandardCharsets.ISO_8859_1)));
+    }
+
+    @Test
+    public void binaryDataStreamedAsIs() throws Exception {
+        byte[] binary = new byte[70000];
+        for (int i = 0; i < binary.length; i++) binary[i] = (byte) (i * 31);
+        CUrl.MemIO memIO = new CUrl.MemIO(), headers = new CUrl.MemIO();
+        memIO.write(binary);
+        assertTrue(Arrays.equals(binary, new CUrl(local("/upload")).data(memIO, true).dumpHeader(headers).exec(CUrl.RAW, null)));
+        assertEquals(Integer.toString(binary.length), headers.parseDumpedHeader().get("X-content-length")); // fixed-length
+        headers.reset();
+        CUrl.WrappedIO unknownLength = new CUrl.WrappedIO(new ByteArrayInputStream(binary));
+        assertTrue(Arrays.equals(binary, new CUrl(local("/upload")).data(unknownLength, true).dumpHeader(headers).exec(CUrl.RAW, null)));
+        assertEquals("null", headers.parseDumpedHeader().get("X-content-length")); // chunked
+    }
+
+    @Test
+    public void http2Transport() throws Exception {
+        assertNotNull(CUrl.getHttp2Transport());
+        CUrl curl = new CUrl(local("/cookie")).http2().cookie("foo=bar");
+        assertEquals("foo=bar", curl.exec(CUrl.UTF8, null)); // cookies are applied by CUrl, not by HttpClient
+        assertTrue(curl.getResponseHeaders().get(0).get(0)[1].startsWith("HTTP/")); // h2c is not supported by the local server
+        byte[] binary = new byte[70000];
+        for (int i = 0; i < binary.length; i++) binary[i] = (byte) (i * 31);
+        CUrl.MemIO memIO = new CUrl.MemIO();
+        memIO.write(binary);
+        assertTrue(Arrays.equals(binary, new CUrl(local("/upload")).http2().data(memIO, true).exec(CUrl.RAW, null)));
+        CUrl.MemIO stderr1 = new CUrl.MemIO(), stderr2 = new CUrl.MemIO();
+        new CUrl(local("/no-such-path")).stderr(stderr1).exec();
+        new CUrl(local("/no-such-path")).stderr(stderr2).http2().exec();
+        assertTrue(new String(stderr1.toByteArray()).startsWith("java.io.FileNotFoundException"));
+        assertTrue(new String(stderr2.toByteArray()).startsWith("java.io.FileNotFoundException")); // same error semantics
+    }
+
+    @Test
+    public void responseHeadersLookup() {
+        CUrl curl = new CUrl(local("/json"));
+        curl.exec();
+        CUrl.Headers headers = curl.getLastResponseHeaders();
+        assertSame(headers, curl.getResponseHeaders().get(0));
+        assertEquals("HTTP/1.1 200 OK", headers.getStatusLine());
+        assertEquals("application/json", headers.getFirst("content-type")); // case-insensitive
+        assertEquals(Arrays.asList("gzip"), headers.getAll("CONTENT-ENCODING"));
+        int idx = headers.indexOf("Content-Type", 0);
+        assertTrue(Arrays.equals(new String[] { headers.getName(idx), "application/json" }, headers.get(idx))); // List<String[]> view
+    }
+
+    @Test
+    public void reflectiveLookupAcrossThreads() throws Exception {
+        final CUrl curl = new CUrl(local("/json"));
+        List<CompletableFuture<Boolean>> futures = new ArrayList<CompletableFuture<Boolean>>();
+        for (int i = 0; i < 8; i++) {
+            futures.add(CompletableFuture.supplyAsync(() -> {
+                for (int j = 0; j < 1000; j++) {
+                    if (CUrl.Util.getField(curl, null, "options", null, true) == null) return false; // private field
+                    if (!"x".equals(CUrl.Util.invoke(null, String.class, "valueOf", false, "C", 'x'))) return false;
+                }
+                return true;
+            }));
+        }
+        for (CompletableFuture<Boolean> f: futures) assertTrue(f.get());
+        assertNull(CUrl.Util.getField(curl, null, "noSuchField", null, true));
+    }
+
+    @Test
+    public void basicAuthHeaderCached() {
+        assertEquals("dXNlcjpwYXNzd2Q=", CUrl.Util.base64Encode("user:passwd".getBytes()));
+        String auth = CUrl.basicAuth("user:passwd");
+        assertEquals("Basic dXNlcjpwYXNzd2Q=", auth);
+        assertSame(auth, CUrl.basicAuth("user:passwd"));
+        assertEquals(auth, new CUrl(local("/")).opt("-u", "user:passwd").compile().getHeaders().get("Authorization"));
+    }
+
+    @Test
+    public void readStreamPresizedFromContentLength() {
+        byte[] bb = CUrl.Util.readStream(new ByteArrayInputStream(LARGE_BODY), 0, true, LARGE_BODY.length);
+        assertTrue(Arrays.equals(LARGE_BODY, bb));
+        assertTrue(CUrl.Util.readStream(new ByteArrayInputStream(LARGE_BODY), 1000, true, LARGE_BODY.length).length >= 1000);
+        assertTrue(Arrays.equals(LARGE_BODY, CUrl.Util.readStream(new ByteArrayInputStream(LARGE_BODY), 0, true, 10))); // grows if too small
+        assertTrue(Arrays.equals(LARGE_BODY, new CUrl(local("/upload")).data(new CUrl.WrappedIO(LARGE_BODY), true).exec(CUrl.RAW, null)));
+    }
+
+    @Test
+    public void retryPolicyWithStatusAndBudget() {
+        CUrl curl = new CUrl(local("/flaky?a,2,503")).retry(3, 0, 0); // Retry-After: 0
+        assertEquals("ok", curl.exec(CUrl.UTF8, null));
+        assertEquals(3, flakyHits.get("a").get());
+        curl = new CUrl(local("/flaky?b,1,404")).retry(3, 0.01f, 0);
+        curl.exec();
+        assertEquals(1, flakyHits.get("b").get()); // 404 is not transient
+        curl = new CUrl(local("/flaky?c,1,404")).retry(3, 0.01f, 0, true);
+        assertEquals("ok", curl.exec(CUrl.UTF8, null)); // --retry-all-errors
+        CUrl.RetryBudget budget = new CUrl.RetryBudget(0, 0);
+        CUrl.setRetryBudget(budget);
+        try {
+            new CUrl(local("/flaky?d,1,503")).retry(3, 0, 0).exec();
+            assertEquals(1, flakyHits.get("d").get());
+            assertEquals(1, budget.getRejected());
+        } finally {
+            CUrl.setRetryBudget(null);
+        }
+        CUrl.BackoffRetryPolicy policy = new CUrl.BackoffRetryPolicy(3, 0, false);
+        for (int i = 0; i < 100; i++) {
+            long delay = policy.nextDelay(3, 502, new IOException(), -1);
+            assertTrue(delay >= 0 && delay <= 4 * CUrl.BackoffRetryPolicy.BASE_DELAY); // full jitter
+        }
+        assertEquals(-1, policy.nextDelay(4, 503, new IOException(), -1));
+        assertEquals(120000, CUrl.parseRetryAfter("120"));
+    }
+
+    @Test
+    public void circuitBreakerOpensAndProbes() throws Exception {
+        CUrl.CircuitBreakers breakers = new CUrl.CircuitBreakers(2, 200);
+        CUrl.setCircuitBreakers(breakers);
+        try {
+            new CUrl(local("/flaky?e,3,503")).exec();
+            new CUrl(local("/flaky?e,3,503")).exec();
+            CUrl.CircuitBreaker breaker = breakers.getBreakers().values().iterator().next();
+            assertEquals(CUrl.CircuitBreaker.State.OPEN, breaker.getState());
+            CUrl.MemIO stderr = new CUrl.MemIO();
+            CUrl curl = new CUrl(local("/flaky?e,3,503")).retry(3, 0, 0).stderr(stderr);
+            curl.exec();
+            assertEquals(2, flakyHits.get("e").get()); // failed fast, not retried
+            assertEquals(1, breaker.getRejected());
+            assertTrue(new String(stderr.toByteArray()).contains("CircuitOpenException"));
+            Thread.sleep(250);
+            curl = new CUrl(local("/flaky?e,3,503")).retry(3, 0, 0);
+            curl.exec(); // the probe fails, open again
+            assertEquals(3, flakyHits.get("e").get());
+            assertEquals(CUrl.CircuitBreaker.State.OPEN, breaker.getState());
+            Thread.sleep(250);
+            assertEquals("ok", new CUrl(local("/flaky?e,3,503")).exec(CUrl.UTF8, null));
+            assertEquals(CUrl.CircuitBreaker.State.CLOSED, breaker.getState());
+        } finally {
+            CUrl.setCircuitBreakers(null);
+        }
+    }
+
+    @Test
+    public void hedgedRequestWins() {
+        CUrl curl = new CUrl(local("/lag?h,2000")).hedge(100);
+        assertEquals("2", curl.exec(CUrl.UTF8, null)); // the hedged request wins
+        assertEquals(1, curl.getHedges());
+        assertTrue(curl.getExecTime() < 2000);
+        curl = new CUrl(local("/lag?i,0")).hedge(1000);
+        assertEquals("1", curl.exec(CUrl.UTF8, null));
+        assertEquals(0, curl.getHedges());
+        curl = new CUrl(local("/lag?j,300")).data("a=b").hedge(100);
+        assertEquals("1", curl.exec(CUrl.UTF8, null)); // POST is never hedged
+        assertEquals(0, curl.getHedges());
+    }
+
+    @Test
+    public void maxTimeIsTotalDeadline() {
+        CUrl.MemIO stderr = new CUrl.MemIO();
+        CUrl curl = new CUrl(local("/drip?30,100")).timeout(0, 0.5f).stderr(stderr);
+        curl.exec(); // every read returns in time, but the whole transfer does not
+        assertEquals(CUrl.DeadlineExceededException.HTTP_CODE, curl.getHttpCode());
+        assertTrue(curl.getExecTime() < 1500);
+        assertTrue(new String(stderr.toByteArray()).contains("DeadlineExceededException"));
+        curl = new CUrl(local("/flaky?k,100000,503")).retry(100000, 0, 0).timeout(0, 0.3f); // Retry-After: 0
+        curl.exec();
+        assertEquals(CUrl.DeadlineExceededException.HTTP_CODE, curl.getHttpCode()); // retries stop at the deadline
+        assertTrue(curl.getExecTime() < 1000);
+        assertEquals("aaa", new CUrl(local("/drip?3,10")).timeout(0, 2).exec(CUrl.UTF8, null));
+    }
+
+    @Test
+    public void maxTimeFailsStalledBody() {
+        CUrl curl = new CUrl(local("/stall?10,100")).timeout(0, 1f);
+        curl.exec();
+        assertEquals(CUrl.DeadlineExceededException.HTTP_CODE, curl.getHttpCode()); // the truncated body is not a success
+        assertTrue(curl.getExecTime() < 2500);
+        curl = new CUrl(local("/stall?10,100")).timeout(0, 1f).stream().output(new CUrl.MemIO());
+        curl.exec();
+        assertEquals(CUrl.DeadlineExceededException.HTTP_CODE, curl.getHttpCode());
+    }
+
+    @Test
+    public void rateLimitAndLowSpeedAbort() throws Exception {
+        byte[] bb = Arrays.copyOf(LARGE_BODY, 48 * 1024);
+        CUrl curl = new CUrl(local("/upload")).data(new CUrl.WrappedIO(bb), true).opt("--limit-rate", "32K");
+        assertTrue(Arrays.equals(bb, curl.exec(CUrl.RAW, null)));
+        assertTrue(curl.getExecTime() >= 400); // a burst of 32KB, then 16KB at 32KB/s
+        assertEquals(bb.length, curl.getSizeDownload());
+        assertEquals(bb.length * 1000L / curl.getExecTime(), curl.getSpeedDownload());
+        CUrl.MemIO stderr = new CUrl.MemIO();
+        curl = new CUrl(local("/drip?30,400")).speedLimit(100, 1).stderr(stderr);
+        curl.exec();
+        assertEquals(CUrl.DeadlineExceededException.HTTP_CODE, curl.getHttpCode());
+        assertTrue(curl.getExecTime() < 3000);
+        assertTrue(new String(stderr.toByteArray()).contains("LowSpeedException"));
+        curl = new CUrl(local("/stall?10,100")).speedLimit(1, 1); // no data at all after the first bytes
+        curl.exec();
+        assertEquals(CUrl.DeadlineExceededException.HTTP_CODE, curl.getHttpCode());
+        assertTrue(curl.getExecTime() < 3000);
+        long start = System.currentTimeMillis();
+        InputStream in = new CUrl.Util.ThrottledInputStream(new ByteArrayInputStream(new byte[1000]), 1000, 0, 0);
+        while (in.read(new byte[10]) > 0); // small reads do not waste the burst
+        assertTrue(System.currentTimeMillis() - start < 500);
+        assertEquals(1536 * 1024, CUrl.Util.parseSize("1.5M"));
+        assertEquals(2048, CUrl.Util.parseSize("2k"));
+        assertEquals(100, CUrl.Util.parseSize("100"));
+        try {
+            new CUrl(local("/json")).opt("--limit-rate", "").compile();
+            fail();
+        } catch (IllegalArgumentException expected) {}
+    }
+
+    @Test
+    public void timingPerAttemptAndWriteOut() {
+        CUrl curl = new CUrl(local("/slow?abc")).writeOut("\\n%{http_code} %{size_download} %{num_redirects} %{url_effective}");
+        assertEquals("abc\n200 3 0 " + local("/slow?abc"), curl.exec(CUrl.UTF8, null));
+        CUrl.Timing t = curl.getTiming();
+        assertTrue(t.getTimeNamelookup() > 0 && t.getTimeNamelookup() <= t.getTimeConnect());
+        assertTrue(t.getTimeConnect() <= t.getTimePretransfer() && t.getTimePretransfer() <= t.getTimeStarttransfer());
+        assertTrue(t.getTimeStarttransfer() >= 0.05 && t.getTimeStarttransfer() <= t.getTimeTotal()); // the server sleeps 50ms
+        assertEquals(0, t.getTimeAppconnect(), 0); // plain HTTP
+        curl = new CUrl(local("/flaky?t,1,503")).retry(1, 0, 0);
+        assertEquals("ok", curl.exec(CUrl.UTF8, null));
+        List<CUrl.Timing> timings = curl.getTimings();
+        assertEquals(2, timings.size());
+        assertEquals(503, timings.get(0).getHttpCode());
+        assertEquals(1, timings.get(1).getAttempt());
+        assertTrue(timings.get(1).getTimeStart() >= timings.get(0).getTimeTotal());
+    }
+
+    @Test
+    public void pooledTransportReusesConnections() throws Exception {
+        CUrl.Transport transport = CUrl.getDefaultTransport();
+        CUrl.ConnectionPool pool = new CUrl.ConnectionPool(1, 4);
+        CUrl.setDefaultTransport(pool);
+        try {
+            for (int i = 0; i < 3; i++) assertEquals("Yours Truly", deepGet(new CUrl(local("/json")).exec(jsonResolver, null), "slideshow.author")); // chunked
+            assertEquals(1, pool.getCreated());
+            assertEquals(2, pool.getReused());
+            assertEquals("a=b", new CUrl(local("/cookie")).cookie("a=b").exec(CUrl.UTF8, null));
+            CUrl curl = new CUrl(local("/upload")).data("x=y");
+            assertEquals("x=y", curl.exec(CUrl.UTF8, null));
+            assertEquals("3", curl.getLastResponseHeaders().getFirst("X-Content-Length"));
+            new CUrl(local("/flaky?p,1,500")).exec(); // the error body is read
+            new CUrl(local("/drip?20,10")).opt("--x-max-download", "5").exec(); // truncated, then drained
+            assertEquals(1, pool.getCreated());
+            assertEquals(1, pool.getIdle());
+            pool.drainLimit(0);
+            new CUrl(local("/drip?20,10")).opt("--x-max-download", "5").exec(); // truncated, then closed
+            assertEquals(0, pool.getIdle());
+            new CUrl(local("/json")).opt("--no-keepalive").exec(); // a new connection, not kept
+            assertEquals(2, pool.getCreated());
+            assertEquals(0, pool.getIdle());
+            new CUrl(local("/json")).exec(); // kept alive
+            new CUrl(local("/hangup?get")).exec();
+            assertEquals(2, flakyHits.get("get").get()); // replayed on a new connection
+            new CUrl(local("/json")).exec();
+            new CUrl(local("/hangup?post")).data("a=b").exec();
+            assertEquals(1, flakyHits.get("post").get()); // POST is not replayed once sent
+            List<CompletableFuture<String>> futures = new ArrayList<CompletableFuture<String>>();
+            for (int i = 0; i < 3; i++) futures.add(new CUrl(local("/slow?" + i)).execAsync(CUrl.UTF8));
+            for (int i = 0; i < 3; i++) assertEquals(String.valueOf(i), futures.get(i).get());
+            assertTrue(pool.getWaits() >= 1); // one connection per route
+            assertEquals(0, pool.getLeased());
+            assertTrue(pool.getReuseRate() > 0.5);
+        } finally {
+            CUrl.setDefaultTransport(transport);
+            pool.close();
+        }
+        String port = new CUrl(local("/peer")).opt("--no-keepalive").exec(CUrl.UTF8, null); // HttpURLConnection
+        assertTrue(!port.equals(new CUrl(local("/peer")).exec(CUrl.UTF8, null))); // not kept alive
+    }
+
+    @Test
+    public void dnsCacheAndResolveOverrides() throws Exception {
+        final AtomicInteger lookups = new AtomicInteger();
+        CUrl.DnsCache cache = new CUrl.DnsCache(1000, 10000).lookupTimeout(100).lookup(host -> {
+            lookups.incrementAndGet();
+            if (host.startsWith("slow")) try { Thread.sleep(500); } catch (InterruptedException ignored) {}
+            if (!host.endsWith(".test")) throw new java.net.UnknownHostException(host);
+            return new java.net.InetAddress[] { java.net.InetAddress.getByName("127.0.0.1") };
+        });
+        CUrl.Transport transport = CUrl.getDefaultTransport();
+        CUrl.ConnectionPool pool = new CUrl.ConnectionPool(2, 4);
+        CUrl.setDefaultTransport(pool); // connects to the resolved addresses
+        CUrl.setDnsCache(cache);
+        int port = server.getAddress().getPort();
+        try {
+            assertEquals("1", new CUrl("http://stub.test:" + port + "/slow?1").exec(CUrl.UTF8, null));
+            assertEquals("2", new CUrl("http://stub.test:" + port + "/slow?2").exec(CUrl.UTF8, null));
+            assertEquals(1, cache.getMisses());
+            assertEquals(1, cache.getHits());
+            Thread.sleep(1000); // expired, served stale and refreshed in background
+            assertEquals("3", new CUrl("http://stub.test:" + port + "/slow?3").exec(CUrl.UTF8, null));
+            assertEquals(1, cache.getStaleHits());
+            CUrl curl = new CUrl("http://slow.test:" + port + "/slow?4");
+            curl.exec();
+            assertEquals(-1, curl.getHttpCode()); // lookup timed out
+            assertEquals(1, cache.getTimeouts());
+            int before = lookups.get();
+            assertEquals("5", new CUrl("http://resolved.example:" + port + "/slow?5").resolve("Resolved.Example:" + port + ":127.0.0.2,127.0.0.1").exec(CUrl.UTF8, null));
+            assertEquals(before, lookups.get()); // no lookup, the refused address is skipped
+            cache.prefetch(Arrays.asList("http://a.test/", "http://b.test/x", "http://a.test/y", "http://bad.invalid/")).get();
+            before = lookups.get();
+            new CUrl("http://a.test:" + port + "/slow?6").exec();
+            new CUrl("http://b.test:" + port + "/slow?7").exec();
+            assertEquals(before, lookups.get());
+            assertEquals(1, cache.getFailures());
+        } finally {
+            CUrl.setDnsCache(null);
+            CUrl.setDefaultTransport(transport);
+            pool.close();
+        }
+    }
+
+    @Test
+    public void indexedCookieStoreMatchesLinearScan() throws Exception {
+        CUrl.CookieIO linear = new CUrl.CookieIO();
+        CUrl.IndexedCookieIO indexed = new CUrl.IndexedCookieIO();
+        for (int i = 0; i < 2000; i++) {
+            String domain = (i % 3 == 0 ? "." : "") + (i % 5 == 0 ? "www." : "") + "d" + (i % 700) + ".example" + (i % 2 == 0 ? ".com" : ".org");
+            HttpCookie c = new HttpCookie("c" + (i % 11), String.valueOf(i));
+            c.setDomain(domain);
+            if (i % 7 == 0) c.setPath("/api");
+            linear.add(null, (HttpCookie) c.clone());
+            indexed.add(null, c);
+        }
+        assertEquals(linear.getCookies().size(), indexed.getCookies().size());
+        for (String host: Arrays.asList("d1.example.org", "www.d5.example.com", "a.d6.example.com", "D0.Example.com", "example.com", "other.net")) {
+            for (String path: Arrays.asList("/", "/api", "/api/x", "/apix")) {
+                URI uri = new URI("http://" + host + path);
+                List<String> expected = new ArrayList<String>();
+                for (HttpCookie c: linear.get(uri)) {
+                    if (c.getPath().equals("/") || path.equals(c.getPath()) || path.startsWith(c.getPath() + "/")) expected.add(c.getDomain() + c.getPath() + c.getName() + c.getValue());
+                }
+                List<String> actual = new ArrayList<String>();
+                for (HttpCookie c: indexed.get(uri)) actual.add(c.getDomain() + c.getPath() + c.getName() + c.getValue());
+                Collections.sort(expected);
+                Collections.sort(actual);
+                assertEquals(host + path, expected, actual);
+            }
+        }
+        HttpCookie expiring = new HttpCookie("exp", "1");
+        expiring.setMaxAge(1);
+        indexed.add(new URI("http://exp.test/"), expiring);
+        assertEquals(1, indexed.get(new URI("http://exp.test/")).size());
+        Thread.sleep(1100);
+        int size = indexed.getCookies().size();
+        assertEquals(linear.getCookies().size(), size); // purged
+        HttpCookie removed = new HttpCookie("c1", "x");
+        removed.setDomain("d1.example.org");
+        removed.setMaxAge(0); // Max-Age=0 deletes
+        indexed.add(null, removed);
+        assertEquals(size - 1, indexed.getCookies().size());
+        indexed.removeAll();
+        assertEquals(0, indexed.getCookies().size());
+    }
+
+    @Test
+    public void cookieSessionSharedAcrossThreads() throws Exception {
+        assertNull(java.net.CookieHandler.getDefault()); // not installed JVM-wide
+        CUrl.CookieSession session = new CUrl.CookieSession(10, 4);
+        new CUrl(local("/setcookie?a=1")).cookieSession(session).exec();
+        assertTrue(CUrl.getCookieStore().getCookies().isEmpty()); // not in the thread-bound store
+        assertEquals("a=1", new CUrl(local("/cookie")).cookieSession(session).execAsync(CUrl.UTF8).get()); // another thread
+        assertEquals("x=y; a=1", new CUrl(local("/cookie")).cookieSession(session).cookie("x=y").exec(CUrl.UTF8, null).replace("a=1; x=y", "x=y; a=1"));
+        assertEquals(2, session.size());
+        List<CompletableFuture<String>> futures = new ArrayList<CompletableFuture<String>>();
+        for (int i = 0; i < 40; i++) futures.add(new CUrl(local("/setcookie?c" + i + "=" + i)).cookieSession(session).execAsync(CUrl.UTF8));
+        for (CompletableFuture<String> f: futures) f.get();
+        assertEquals(10, session.size());
+        assertEquals(32, session.getEvictions());
+        assertEquals(10, session.getCookies().size());
+        session.removeAll();
+        assertEquals(0, session.size());
+    }
+
+    @Test
+    public void cookieJournalTombstoneSurvivesReload() throws Exception {
+        File file = File.createTempFile("cookies", ".journal");
+        CUrl.CookieJournal journal = new CUrl.CookieJournal(file);
+        try {
+            HttpCookie c = new HttpCookie("sid", "abc");
+            c.setDomain("example.com");
+            c.setPath("/");
+            journal.record(Arrays.asList(c));
+            journal.record(Collections.<HttpCookie>emptyList()); // removed, appended as expired
+            journal.shutdown();
+            journal = new CUrl.CookieJournal(file); // not compacted
+            assertEquals(2, journal.getRecords());
+            assertTrue(journal.getCookies().isEmpty());
+            assertTrue(CUrl.parseCookies("example.com\tFALSE\t/\tFALSE\t1000\told\tv\n").isEmpty());
+            assertEquals(1, CUrl.parseCookies("example.com\tFALSE\t/\tFALSE\t0\tsession\tv\n").size());
+        } finally {
+            journal.shutdown();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void cookieJournalAppendsChangesOnly() throws Exception {
+        File file = File.createTempFile("cookies", ".journal");
+        file.delete();
+        CUrl.CookieJournal journal = new CUrl.CookieJournal(file);
+        CUrl.CookieSession session = new CUrl.CookieSession();
+        try {
+            new CUrl(local("/setcookie?a=1")).cookieSession(session).cookie(journal).cookieJar(journal).exec();
+            assertEquals(1, journal.getAppended());
+            assertEquals("a=1", new CUrl(local("/cookie")).cookieSession(session).cookie(journal).cookieJar(journal).exec(CUrl.UTF8, null));
+            assertEquals(1, journal.getAppended()); // unchanged, nothing appended
+            new CUrl(local("/setcookie?a=2")).cookieSession(session).cookieJar(journal).exec();
+            new CUrl(local("/setcookie?b=3")).cookieSession(session).cookieJar(journal).exec();
+            assertEquals(3, journal.getAppended());
+            journal.shutdown();
+
+            journal = new CUrl.CookieJournal(file); // memory-mapped load, the last record wins
+            assertEquals(3, journal.getRecords());
+            CUrl.CookieSession restored = new CUrl.CookieSession();
+            assertEquals("a=2; b=3", new CUrl(local("/cookie")).cookieSession(restored).cookie(journal).exec(CUrl.UTF8, null).replace("b=3; a=2", "a=2; b=3"));
+            restored.remove(null, restored.getCookies().get(0));
+            journal.record(restored.getCookies()); // the removed one is appended as expired
+            assertEquals(1, journal.getCookies().size());
+            journal.compact();
+            assertEquals(1, journal.getRecords());
+            assertEquals(1, Files.readAllLines(file.toPath()).size());
+            CUrl.MemIO exported = new CUrl.MemIO();
+            journal.export(exported);
+            assertTrue(new String(exported.toByteArray(), StandardCharsets.UTF_8).startsWith("# Netscape HTTP Cookie File"));
+            assertEquals(journal.getCookies().get(0).getName(), exported.parseCookieJar().get(0).getName());
+
+            journal.compactThreshold(4);
+            for (int i = 0; i < 20; i++) {
+                HttpCookie c = new HttpCookie("n", String.valueOf(i));
+                c.setDomain("127.0.0.1");
+                c.setPath("/");
+                journal.record(Arrays.asList(c));
+            }
+            for (int i = 0; i < 50 && journal.getCompactions() < 2; i++) Thread.sleep(20); // in background
+            assertTrue(journal.getCompactions() >= 2);
+            journal.compact();
+            assertEquals(1, Files.readAllLines(file.toPath()).size());
+            assertEquals("19", new CUrl.CookieJournal(file).getCookies().get(0).getValue());
+        } finally {
+            journal.shutdown();
+            file.delete();
+        }
+    }
+
     ///////////////////////////////////////////////////////////////////////////////
 
+    private static final byte[] LARGE_BODY = new byte[1 << 20];
+    private static final Map<String, AtomicInteger> flakyHits = new ConcurrentHashMap<String, AtomicInteger>();
+    private static final AtomicInteger concurrentSlow = new AtomicInteger(), maxConcurrentSlow = new AtomicInteger();
+    private static HttpServer server;
+
+    /** Local HTTP server for the tests which should not depend on network */
+    @BeforeClass
+    public static void startServer() throws Exception {
+        for (int i = 0; i < LARGE_BODY.length; i++) LARGE_BODY[i] = (byte) ('a' + i % 26);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/gzip", exchange -> {
+            exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream os = new GZIPOutputStream(exchange.getResponseBody())) { os.write(LARGE_BODY); }
+        });
+        server.createContext("/json", exchange -> {
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream os = new GZIPOutputStream(exchange.getResponseBody())) {
+                os.write("{\"slideshow\": {\"author\": \"Yours Truly\"}}".getBytes(StandardCharsets.UTF_8));
+            }
+        });
+        server.createContext("/cookie", exchange -> { // echo the Cookie request header
+            byte[] bb = String.valueOf(exchange.getRequestHeaders().getFirst("Cookie")).getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, bb.length);
+            try (OutputStream os = exchange.getResponseBody()) { os.write(bb); }
+        });
+        server.createContext("/setcookie", exchange -> { // query "name=value": set the cookie
+            exchange.getResponseHeaders().add("Set-Cookie", exchange.getRequestURI().getRawQuery() + "; Path=/");
+            exchange.sendResponseHeaders(204, -1);
+            exchange.close();
+        });
+        server.createContext("/slow", exchange -> { // echo the query string after a while
+            int c = concurrentSlow.incrementAndGet();
+            maxConcurrentSlow.accumulateAndGet(c, Math::max);
+            try { Thread.sleep(50); } catch (InterruptedException ignored) {}
+            concurrentSlow.decrementAndGet();
+            byte[] bb = exchange.getRequestURI().getQuery().getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, bb.length);
+            try (OutputStream os = exchange.getResponseBody()) { os.write(bb); }
+        });
+        server.createContext("/upload", exchange -> { // echo the request body, with the declared Content-Length
+            byte[] bb = CUrl.Util.readStream(exchange.getRequestBody(), true);
+            exchange.getResponseHeaders().add("X-Content-Length", String.valueOf(exchange.getRequestHeaders().getFirst("Content-Length")));
+            exchange.sendResponseHeaders(200, bb.length);
+            try (OutputStream os = exchange.getResponseBody()) { os.write(bb); }
+        });
+        server.createContext("/flaky", exchange -> { // query "key,n,code": respond the code for the first n hits of the key
+            String[] args = exchange.getRequestURI().getQuery().split(",");
+            int hits = flakyHits.computeIfAbsent(args[0], k -> new AtomicInteger()).incrementAndGet();
+            int code = hits <= Integer.parseInt(args[1]) ? Integer.parseInt(args[2]) : 200;
+            byte[] bb = (code == 200 ? "ok" : "fail").getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Retry-After", "0");
+            exchange.sendResponseHeaders(code, bb.length);
+            try (OutputStream os = exchange.getResponseBody()) { os.write(bb); }
+        });
+        server.createContext("/lag", exchange -> { // query "key,ms": the first hit of the key is delayed for ms, respond the hit number
+            String[] args = exchange.getRequestURI().getQuery().split(",");
+            int hits = flakyHits.computeIfAbsent(args[0], k -> new AtomicInteger()).incrementAndGet();
+            if (hits == 1) try { Thread.sleep(Long.parseLong(args[1])); } catch (InterruptedException ignored) {}
+            byte[] bb = String.valueOf(hits).getBytes(StandardCharsets.UTF_8);
+            try {
+                exchange.sendResponseHeaders(200, bb.length);
+                try (OutputStream os = exchange.getResponseBody()) { os.write(bb); }
+            } catch (IOException ignored) {} // cancelled by the client
+        });
+        server.createContext("/drip", exchange -> { // query "n,ms": respond n bytes, one byte every ms
+            String[] args = exchange.getRequestURI().getQuery().split(",");
+            int n = Integer.parseInt(args[0]);
+            exchange.sendResponseHeaders(200, n);
+            try (OutputStream os = exchange.getResponseBody()) {
+                for (int i = 0; i < n; i++) {
+                    Thread.sleep(Long.parseLong(args[1]));
+                    os.write('a');
+                    os.flush();
+                }
+            } catch (IOException | InterruptedException ignored) {} // aborted by the client
+        });
+        server.createContext("/stall", exchange -> { // query "n,total": respond n bytes of the declared total, then stall
+            String[] args = exchange.getRequestURI().getQuery().split(",");
+            exchange.sendResponseHeaders(200, Long.parseLong(args[1]));
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(new byte[Integer.parseInt(args[0])]);
+                os.flush();
+                Thread.sleep(5000);
+            } catch (IOException | InterruptedException ignored) {} // aborted by the client
+        });
+        server.createContext("/hangup", exchange -> { // query "key": count the hits of the key, close the connection without response
+            flakyHits.computeIfAbsent(exchange.getRequestURI().getQuery(), k -> new AtomicInteger()).incrementAndGet();
+            CUrl.Util.readStream(exchange.getRequestBody(), true);
+            exchange.close();
+        });
+        server.createContext("/peer", exchange -> { // respond the port of the client connection
+            byte[] bb = String.valueOf(exchange.getRemoteAddress().getPort()).getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, bb.length);
+            try (OutputStream os = exchange.getResponseBody()) { os.write(bb); }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        server.stop(0);
+    }
+
+    @After
+    public void clearCookies() {
+        CUrl.getCookieStore().removeAll(); // e.g. --cookie of a test, the tests share the thread-local store
+    }
+
+    private static String local(String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+
     private CUrl curl(String url) {
         CUrl curl = new CUrl(url);
         if (ENABLE_FIDDLER_FOR_ALL_TEST) {
@@ -219,6 +947,14 @@ public class CUrlTest {
             return new ObjectMapper().readValue(json, Map.class);
         }
     };
+    /** Implement a custom resolver that parse JSON from the response stream */
+    private CUrl.StreamResolver<Map<String, Object>> jsonStreamResolver = new CUrl.StreamResolver<Map<String, Object>>() {
+        @SuppressWarnings("unchecked")
+        @Override
+        public Map<String, Object> resolve(int httpCode, InputStream responseBody) throws Throwable {
+            return new ObjectMapper().readValue(responseBody, Map.class);
+        }
+    };
     /** Implement a custom resolver that convert raw response to Jsoup Document */
     private CUrl.Resolver<Document> htmlResolver = new CUrl.Resolver<Document>() {
         @SuppressWarnings("unchecked")